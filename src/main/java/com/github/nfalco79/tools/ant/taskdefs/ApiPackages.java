@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.StringUtils;
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+
+/**
+ * Aggregates the packages exported by the bundles of a subsystem into the
+ * value of the IBM-API-Package header.
+ * <p>
+ * Each package is declared once, with the clause of its highest exported
+ * version. Packages under {@code javax.} are typed as specification API
+ * unless their clause already declares a type. The packages are listed
+ * sorted by name.
+ */
+/* package */ class ApiPackages {
+
+	private static final String TYPE_ATTRIBUTE = "type";
+	private static final String SPEC_PREFIX = "javax.";
+	private static final String SPEC_TYPE = ";type=\"spec\"";
+
+	private static class Export {
+		private final Version version;
+		private final Clauses clauses;
+		private final int index;
+
+		Export(Version version, Clauses clauses, int index) {
+			this.version = version;
+			this.clauses = clauses;
+			this.index = index;
+		}
+	}
+
+	private final Map<String, Export> exports = new HashMap<String, Export>();
+
+	/**
+	 * Adds the export clauses of a bundle. The clause of a package is kept if
+	 * the package was not added yet or if its version is higher than the one
+	 * added.
+	 *
+	 * @param clauses
+	 *            the export clauses
+	 */
+	public void addAll(Clauses clauses) {
+		for (int i = 0; i < clauses.size(); i++) {
+			String name = clauses.getPath(i);
+			Version version = clauses.getVersion(i);
+			Export export = new Export(version != null ? version : Version.EMPTY, clauses, i);
+			Export previous = exports.get(name);
+			if (previous == null || export.version.compareTo(previous.version) > 0) {
+				exports.put(name, export);
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return exports.isEmpty();
+	}
+
+	/**
+	 * Returns the value of the IBM-API-Package header.
+	 *
+	 * @return the aggregated packages
+	 */
+	public String getValue() {
+		List<String> names = new ArrayList<String>(exports.keySet());
+		Collections.sort(names);
+		List<String> clauses = new ArrayList<String>(names.size());
+		for (String name : names) {
+			Export export = exports.get(name);
+			String clause = export.clauses.get(export.index);
+			if (name.startsWith(SPEC_PREFIX) && export.clauses.getParameter(export.index, TYPE_ATTRIBUTE, false) == null) {
+				clause += SPEC_TYPE;
+			}
+			clauses.add(clause);
+		}
+		return StringUtils.join(clauses, ", ");
+	}
+}
@@ -27,4 +27,8 @@ package com.github.nfalco79.tools.ant.taskdefs;
 
 	static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
 
+	static final String BUNDLE_IMPORT_PACKAGE = "Import-Package";
+
+	static final String BUNDLE_REQUIRE_BUNDLE = "Require-Bundle";
+
 }
@@ -15,14 +15,52 @@
  */
 package com.github.nfalco79.tools.ant.taskdefs;
 
+import static com.github.nfalco79.tools.ant.taskdefs.SymbolTable.SYMBOLS;
+
+import java.util.Comparator;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+
 class BundleInfo {
 	enum ContentType {
 		bundle, feature, jar, file
 	}
 
+	/**
+	 * Orders the content by name, version and type, independently from the
+	 * order resources are found.
+	 */
+	static final Comparator<BundleInfo> CANONICAL_ORDER = new Comparator<BundleInfo>() {
+		@Override
+		public int compare(BundleInfo b1, BundleInfo b2) {
+			int result = compare(b1.getName(), b2.getName());
+			if (result == 0) {
+				result = b1.getParsedVersion().compareTo(b2.getParsedVersion());
+			}
+			if (result == 0) {
+				result = compare(b1.getVersion(), b2.getVersion());
+			}
+			if (result == 0) {
+				result = b1.getType().compareTo(b2.getType());
+			}
+			return result;
+		}
+
+		private int compare(String s1, String s2) {
+			if (s1 == null || s2 == null) {
+				return s1 == null ? (s2 == null ? 0 : -1) : 1;
+			}
+			return s1.compareTo(s2);
+		}
+	};
+
 	private String version;
-	private String[] exportPackage;
+	private Version parsedVersion = Version.EMPTY;
+	private Clauses exports;
+	private Clauses imports;
+	private Clauses requiredBundles;
 	private String context;
+	private String digest;
 	private String name;
 	private ContentType type;
 
@@ -39,15 +77,95 @@ class BundleInfo {
 	}
 
 	public void setVersion(String version) {
-		this.version = version;
+		this.version = SYMBOLS.canonical(version);
+		try {
+			this.parsedVersion = Version.parseVersion(version);
+		} catch (IllegalArgumentException e) {
+			// as 1.0-SNAPSHOT, compared as the empty version
+			this.parsedVersion = Version.EMPTY;
+		}
+	}
+
+	/**
+	 * Returns the version to use in comparisons.
+	 *
+	 * @return the parsed version, {@link Version#EMPTY} if not specified or
+	 *         not valid
+	 */
+	public Version getParsedVersion() {
+		return parsedVersion;
+	}
+
+	/**
+	 * Returns the Export-Package clauses, one for each package.
+	 *
+	 * @return the exported packages or {@code null} if the bundle has not
+	 *         the header
+	 */
+	public Clauses getExports() {
+		return exports;
+	}
+
+	public void setExports(Clauses exports) {
+		this.exports = exports;
+	}
+
+	public Clauses getImports() {
+		return imports;
+	}
+
+	public void setImports(Clauses imports) {
+		this.imports = imports;
 	}
 
+	public Clauses getRequiredBundles() {
+		return requiredBundles;
+	}
+
+	public void setRequiredBundles(Clauses requiredBundles) {
+		this.requiredBundles = requiredBundles;
+	}
+
+	/**
+	 * Returns the exported packages as written in the header, the strings are built
+	 * on each call, prefer {@link #getExports()} to read them.
+	 *
+	 * @return the clauses or {@code null}
+	 */
 	public String[] getExportPackage() {
-		return exportPackage;
+		return exports != null ? exports.toArray() : null;
 	}
 
 	public void setExportPackage(String[] exportPackage) {
-		this.exportPackage = exportPackage;
+		this.exports = Clauses.of(exportPackage);
+	}
+
+	/**
+	 * Returns the imported packages as written in the header, the strings are built
+	 * on each call, prefer {@link #getImports()} to read them.
+	 *
+	 * @return the clauses or {@code null}
+	 */
+	public String[] getImportPackage() {
+		return imports != null ? imports.toArray() : null;
+	}
+
+	public void setImportPackage(String[] importPackage) {
+		this.imports = Clauses.of(importPackage);
+	}
+
+	/**
+	 * Returns the required bundles as written in the header, the strings are built
+	 * on each call, prefer {@link #getRequiredBundles()} to read them.
+	 *
+	 * @return the clauses or {@code null}
+	 */
+	public String[] getRequireBundle() {
+		return requiredBundles != null ? requiredBundles.toArray() : null;
+	}
+
+	public void setRequireBundle(String[] requireBundle) {
+		this.requiredBundles = Clauses.of(requireBundle);
 	}
 
 	public String getContext() {
@@ -58,11 +176,24 @@ class BundleInfo {
 		this.context = context;
 	}
 
+	/**
+	 * Returns the SHA-256 digest of the archive content, in hexadecimal.
+	 *
+	 * @return the digest or {@code null} if it was not computed
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
 	public String getName() {
 		return name;
 	}
 
 	public void setName(String name) {
-		this.name = name;
+		this.name = SYMBOLS.canonical(name);
 	}
 }
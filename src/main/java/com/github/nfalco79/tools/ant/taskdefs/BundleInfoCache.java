@@ -0,0 +1,416 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.util.FileUtils;
+
+import com.github.nfalco79.tools.ant.taskdefs.BundleInfo.ContentType;
+
+/**
+ * Persistent store of the {@link BundleInfo} extracted from archives.
+ * <p>
+ * Records are keyed by the canonical path of the archive and are valid until
+ * its size or last modified time change. When enabled, the content checksum
+ * is computed only for an archive with the same size but a different last
+ * modified time, and the record is still valid if the checksum is the same.
+ * All records are kept in a single binary file inside the cache
+ * directory, tasks sharing the directory merge their records with those
+ * already in the file when they save.
+ */
+class BundleInfoCache {
+	private static final String CACHE_FILE = "bundleinfo.cache";
+	private static final int MAGIC = 0x45534143; // ESAC
+	private static final int FORMAT_VERSION = 6;
+
+	/** Serializes the saves of the caches in the same directory. */
+	private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+	private static class Record {
+		private long size;
+		private long lastModified;
+		private byte[] checksum;
+		private BundleInfo bundleInfo;
+	}
+
+	private final File directory;
+	private final boolean checksum;
+	private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+	private volatile boolean modified;
+
+	/**
+	 * Creates a cache stored in the given directory.
+	 *
+	 * @param directory
+	 *            where the cache file is stored
+	 * @param checksum
+	 *            if records of archives only touched must be validated
+	 *            against the content checksum of the archive
+	 */
+	BundleInfoCache(File directory, boolean checksum) {
+		this.directory = directory;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Loads all records from the cache directory. A missing, unreadable or
+	 * corrupted cache file results in an empty cache.
+	 *
+	 * @throws IOException
+	 *             if the cache file can not be read
+	 */
+	void load() throws IOException {
+		records.clear();
+		// unknown format or corrupted, will be rewritten
+		modified = !read(records);
+	}
+
+	/**
+	 * Reads the records of the cache file.
+	 *
+	 * @param target
+	 *            where the read records are added
+	 * @return {@code false} if the cache file has an unknown format or is
+	 *         corrupted, in this case no record is added
+	 * @throws IOException
+	 *             if the cache file can not be read
+	 */
+	private boolean read(Map<String, Record> target) throws IOException {
+		File cacheFile = new File(directory, CACHE_FILE);
+		if (!cacheFile.isFile()) {
+			return true;
+		}
+
+		Map<String, Record> read = new HashMap<String, Record>();
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			if (dis.readInt() != MAGIC || dis.readInt() != FORMAT_VERSION) {
+				return false;
+			}
+			long limit = cacheFile.length();
+			int count = readLength(dis, limit);
+			for (int i = 0; i < count; i++) {
+				String path = readUTF8(dis, limit);
+				Record record = new Record();
+				record.size = dis.readLong();
+				record.lastModified = dis.readLong();
+				int checksumLength = dis.readUnsignedByte();
+				if (checksumLength > 0) {
+					record.checksum = new byte[checksumLength];
+					dis.readFully(record.checksum);
+				}
+				record.bundleInfo = readBundleInfo(dis, limit);
+				read.put(path, record);
+			}
+		} catch (EOFException e) {
+			return false;
+		} catch (StreamCorruptedException e) {
+			return false;
+		} finally {
+			FileUtils.close(dis);
+		}
+		target.putAll(read);
+		return true;
+	}
+
+	/**
+	 * Returns the informations stored for the given archive if still valid.
+	 *
+	 * @param file
+	 *            the archive
+	 * @return a copy of the cached informations or {@code null} if there is
+	 *         not a valid record for the archive
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	BundleInfo get(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		Record record = records.get(key);
+		if (record == null) {
+			return null;
+		}
+		long lastModified = file.lastModified();
+		if (record.size != file.length() || record.lastModified != lastModified //
+				&& (!checksum || record.checksum == null || !Arrays.equals(record.checksum, checksum(file)))) {
+			records.remove(key);
+			modified = true;
+			return null;
+		}
+		if (record.lastModified != lastModified) {
+			// only touched
+			Record touched = new Record();
+			touched.size = record.size;
+			touched.lastModified = lastModified;
+			touched.checksum = record.checksum;
+			touched.bundleInfo = record.bundleInfo;
+			records.put(key, touched);
+			modified = true;
+		}
+		return copy(record.bundleInfo);
+	}
+
+	/**
+	 * Stores the informations extracted from the given archive.
+	 *
+	 * @param file
+	 *            the archive
+	 * @param bundleInfo
+	 *            the informations to store
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	void put(File file, BundleInfo bundleInfo) throws IOException {
+		Record record = new Record();
+		record.size = file.length();
+		record.lastModified = file.lastModified();
+		if (checksum) {
+			record.checksum = checksum(file);
+		}
+		record.bundleInfo = copy(bundleInfo);
+		records.put(file.getCanonicalPath(), record);
+		modified = true;
+	}
+
+	/**
+	 * Writes all records whose archive still exists to the cache directory,
+	 * together with the records saved meanwhile by other caches in the same
+	 * directory. The cache file is replaced atomically where supported.
+	 *
+	 * @throws IOException
+	 *             if the cache file can not be written
+	 */
+	void save() throws IOException {
+		for (Iterator<String> it = records.keySet().iterator(); it.hasNext();) {
+			if (!new File(it.next()).isFile()) {
+				it.remove();
+				modified = true;
+			}
+		}
+		if (!modified) {
+			return;
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new FileNotFoundException("Unable to create cache directory " + directory);
+		}
+		String lockKey = directory.getCanonicalPath();
+		Object lock = LOCKS.get(lockKey);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = LOCKS.putIfAbsent(lockKey, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		synchronized (lock) {
+			Map<String, Record> snapshot = new HashMap<String, Record>();
+			// a corrupted file is replaced
+			read(snapshot);
+			for (Iterator<String> it = snapshot.keySet().iterator(); it.hasNext();) {
+				if (!new File(it.next()).isFile()) {
+					it.remove();
+				}
+			}
+			snapshot.putAll(records);
+			write(snapshot);
+		}
+		modified = false;
+	}
+
+	private void write(Map<String, Record> snapshot) throws IOException {
+		File tmpFile = File.createTempFile(CACHE_FILE, ".tmp", directory);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeInt(snapshot.size());
+			for (Entry<String, Record> entry : snapshot.entrySet()) {
+				Record record = entry.getValue();
+				writeUTF8(dos, entry.getKey());
+				dos.writeLong(record.size);
+				dos.writeLong(record.lastModified);
+				if (record.checksum != null) {
+					dos.writeByte(record.checksum.length);
+					dos.write(record.checksum);
+				} else {
+					dos.writeByte(0);
+				}
+				writeBundleInfo(dos, record.bundleInfo);
+			}
+		} finally {
+			FileUtils.close(dos);
+		}
+
+		File cacheFile = new File(directory, CACHE_FILE);
+		try {
+			Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static BundleInfo readBundleInfo(DataInputStream dis, long limit) throws IOException {
+		BundleInfo bundleInfo = new BundleInfo();
+		int type = dis.readUnsignedByte();
+		if (type >= ContentType.values().length) {
+			throw new StreamCorruptedException("Unknown content type " + type);
+		}
+		bundleInfo.setType(ContentType.values()[type]);
+		bundleInfo.setName(readString(dis, limit));
+		bundleInfo.setVersion(readString(dis, limit));
+		bundleInfo.setContext(readString(dis, limit));
+		bundleInfo.setDigest(readString(dis, limit));
+		bundleInfo.setExportPackage(readStrings(dis, limit));
+		bundleInfo.setImportPackage(readStrings(dis, limit));
+		bundleInfo.setRequireBundle(readStrings(dis, limit));
+		return bundleInfo;
+	}
+
+	private static void writeBundleInfo(DataOutputStream dos, BundleInfo bundleInfo) throws IOException {
+		dos.writeByte(bundleInfo.getType().ordinal());
+		writeString(dos, bundleInfo.getName());
+		writeString(dos, bundleInfo.getVersion());
+		writeString(dos, bundleInfo.getContext());
+		writeString(dos, bundleInfo.getDigest());
+		writeClauses(dos, bundleInfo.getExports());
+		writeClauses(dos, bundleInfo.getImports());
+		writeClauses(dos, bundleInfo.getRequiredBundles());
+	}
+
+	private static String[] readStrings(DataInputStream dis, long limit) throws IOException {
+		if (!dis.readBoolean()) {
+			return null;
+		}
+		int length = readLength(dis, limit);
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = readUTF8(dis, limit);
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the clauses in the format read by
+	 * {@link #readStrings(DataInputStream, long)}.
+	 */
+	private static void writeClauses(DataOutputStream dos, Clauses clauses) throws IOException {
+		dos.writeBoolean(clauses != null);
+		if (clauses != null) {
+			dos.writeInt(clauses.size());
+			for (int i = 0; i < clauses.size(); i++) {
+				writeUTF8(dos, clauses.get(i));
+			}
+		}
+	}
+
+	private static String readString(DataInputStream dis, long limit) throws IOException {
+		return dis.readBoolean() ? readUTF8(dis, limit) : null;
+	}
+
+	private static void writeString(DataOutputStream dos, String value) throws IOException {
+		dos.writeBoolean(value != null);
+		if (value != null) {
+			writeUTF8(dos, value);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeUTF8(DataOutputStream, String)},
+	 * unlike {@link DataInputStream#readUTF()} its length is not limited to
+	 * 64KB.
+	 */
+	private static String readUTF8(DataInputStream dis, long limit) throws IOException {
+		byte[] bytes = new byte[readLength(dis, limit)];
+		dis.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeUTF8(DataOutputStream dos, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	/**
+	 * Reads a length, that can not exceed the length of the cache file.
+	 */
+	private static int readLength(DataInputStream dis, long limit) throws IOException {
+		int length = dis.readInt();
+		if (length < 0 || length > limit) {
+			throw new StreamCorruptedException("Invalid length " + length);
+		}
+		return length;
+	}
+
+	private static BundleInfo copy(BundleInfo source) {
+		BundleInfo bundleInfo = new BundleInfo();
+		bundleInfo.setType(source.getType());
+		bundleInfo.setName(source.getName());
+		bundleInfo.setVersion(source.getVersion());
+		bundleInfo.setContext(source.getContext());
+		bundleInfo.setDigest(source.getDigest());
+		// immutable
+		bundleInfo.setExports(source.getExports());
+		bundleInfo.setImports(source.getImports());
+		bundleInfo.setRequiredBundles(source.getRequiredBundles());
+		return bundleInfo;
+	}
+
+	private static byte[] checksum(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			FileUtils.close(is);
+		}
+		return digest.digest();
+	}
+}
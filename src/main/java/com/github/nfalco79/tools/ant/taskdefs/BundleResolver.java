@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+import com.github.nfalco79.tools.ant.taskdefs.util.VersionRange;
+
+/**
+ * Resolves the Import-Package and Require-Bundle requirements of a set of
+ * bundles against a pool of candidate bundles.
+ * <p>
+ * Candidates are indexed by exported package and by symbolic name, so each
+ * requirement looks up only the bundles that could satisfy it. When more
+ * candidates match the one with the highest version is chosen.
+ * <p>
+ * Once the candidates are added the index is only read, so the same
+ * resolver can resolve many contents, also concurrently.
+ *
+ * @param <T>
+ *            the type of the objects that provide the candidate bundles
+ */
+/* package */ class BundleResolver<T> {
+
+	private static final String VERSION_ATTRIBUTE = "version";
+	private static final String BUNDLE_VERSION_ATTRIBUTE = "bundle-version";
+	private static final String RESOLUTION_DIRECTIVE = "resolution";
+	private static final String RESOLUTION_OPTIONAL = "optional";
+
+	/**
+	 * A package exported or a bundle available in a given version.
+	 */
+	private static class Capability<T> {
+		private final Version version;
+		private final Candidate<T> candidate;
+
+		Capability(Version version, Candidate<T> candidate) {
+			this.version = version;
+			this.candidate = candidate;
+		}
+	}
+
+	private static class Candidate<T> {
+		private final T provider;
+		private final BundleInfo bundleInfo;
+
+		Candidate(T provider, BundleInfo bundleInfo) {
+			this.provider = provider;
+			this.bundleInfo = bundleInfo;
+		}
+	}
+
+	private final Map<String, List<Capability<T>>> exporters = new HashMap<String, List<Capability<T>>>();
+	private final Map<String, List<Capability<T>>> symbolicNames = new HashMap<String, List<Capability<T>>>();
+
+	/**
+	 * Adds a candidate bundle to the index.
+	 *
+	 * @param provider
+	 *            the object that provides the bundle
+	 * @param bundleInfo
+	 *            the bundle informations
+	 * @throws IllegalArgumentException
+	 *             if the bundle headers are not valid, the candidate is not
+	 *             added
+	 */
+	public void addCandidate(T provider, BundleInfo bundleInfo) {
+		validate(bundleInfo);
+		Candidate<T> candidate = new Candidate<T>(provider, bundleInfo);
+		index(symbolicNames, bundleInfo.getName(), new Capability<T>(bundleInfo.getParsedVersion(), candidate));
+		Clauses exports = bundleInfo.getExports();
+		if (exports != null) {
+			for (int i = 0; i < exports.size(); i++) {
+				index(exporters, exports.getPath(i), new Capability<T>(getVersion(exports, i), candidate));
+			}
+		}
+	}
+
+	/**
+	 * Checks the version ranges of the requirements of a bundle.
+	 *
+	 * @param bundleInfo
+	 *            the bundle informations
+	 * @throws IllegalArgumentException
+	 *             if a version range is not valid
+	 */
+	public static void validate(BundleInfo bundleInfo) {
+		validate(bundleInfo.getImports(), VERSION_ATTRIBUTE);
+		validate(bundleInfo.getRequiredBundles(), BUNDLE_VERSION_ATTRIBUTE);
+	}
+
+	private static void validate(Clauses requirements, String versionAttribute) {
+		if (requirements != null) {
+			for (int i = 0; i < requirements.size(); i++) {
+				VersionRange.parseRange(requirements.getParameter(i, versionAttribute, false));
+			}
+		}
+	}
+
+	private static <T> void index(Map<String, List<Capability<T>>> index, String name, Capability<T> capability) {
+		List<Capability<T>> capabilities = index.get(name);
+		if (capabilities == null) {
+			capabilities = new ArrayList<Capability<T>>(1);
+			index.put(name, capabilities);
+		}
+		capabilities.add(capability);
+	}
+
+	/**
+	 * Returns the providers of the candidates needed, directly or not, by the
+	 * given bundles. Requirements already satisfied by the given bundles do
+	 * not select any candidate.
+	 *
+	 * @param content
+	 *            the bundles to resolve
+	 * @param resolveOptional
+	 *            if the requirements with {@code resolution:=optional}
+	 *            select candidates too
+	 * @param unresolved
+	 *            collects the requirements that no bundle satisfies
+	 * @return the providers of the selected candidates
+	 * @throws IllegalArgumentException
+	 *             if the headers of a bundle in the content are not valid,
+	 *             see {@link #validate(BundleInfo)}
+	 */
+	public List<T> resolve(Collection<BundleInfo> content, boolean resolveOptional, Collection<String> unresolved) {
+		Set<Candidate<T>> chosen = Collections.newSetFromMap(new IdentityHashMap<Candidate<T>, Boolean>());
+
+		// capabilities of the bundles in the content, they win on candidates
+		Map<String, List<Capability<T>>> provided = new HashMap<String, List<Capability<T>>>();
+		Map<String, List<Capability<T>>> bundles = new HashMap<String, List<Capability<T>>>();
+		Deque<BundleInfo> toResolve = new ArrayDeque<BundleInfo>();
+		for (BundleInfo bundleInfo : content) {
+			if (bundleInfo.getType() != BundleInfo.ContentType.bundle) {
+				continue;
+			}
+			addCapabilities(provided, bundles, bundleInfo, null);
+			toResolve.add(bundleInfo);
+		}
+
+		List<T> result = new ArrayList<T>();
+		BundleInfo bundleInfo;
+		while ((bundleInfo = toResolve.poll()) != null) {
+			List<Candidate<T>> selected = new ArrayList<Candidate<T>>();
+			Clauses imports = bundleInfo.getImports();
+			if (imports != null) {
+				for (int i = 0; i < imports.size(); i++) {
+					if (imports.getPath(i).startsWith("java.")) {
+						continue;
+					}
+					resolve(imports, i, VERSION_ATTRIBUTE, provided, exporters, resolveOptional, chosen, selected, unresolved, "package ");
+				}
+			}
+			Clauses requiredBundles = bundleInfo.getRequiredBundles();
+			if (requiredBundles != null) {
+				for (int i = 0; i < requiredBundles.size(); i++) {
+					resolve(requiredBundles, i, BUNDLE_VERSION_ATTRIBUTE, bundles, symbolicNames, resolveOptional, chosen, selected, unresolved, "bundle ");
+				}
+			}
+
+			for (Candidate<T> candidate : selected) {
+				addCapabilities(provided, bundles, candidate.bundleInfo, candidate);
+				toResolve.add(candidate.bundleInfo);
+				result.add(candidate.provider);
+			}
+		}
+		return result;
+	}
+
+	private void resolve(Clauses requirements,
+							int requirement,
+							String versionAttribute,
+							Map<String, List<Capability<T>>> provided,
+							Map<String, List<Capability<T>>> index,
+							boolean resolveOptional,
+							Set<Candidate<T>> chosen,
+							List<Candidate<T>> selected,
+							Collection<String> unresolved,
+							String kind) {
+		String name = requirements.getPath(requirement);
+		String version = requirements.getParameter(requirement, versionAttribute, false);
+		VersionRange range = VersionRange.parseRange(version);
+		if (find(provided.get(name), range, chosen) != null) {
+			return;
+		}
+
+		boolean optional = RESOLUTION_OPTIONAL.equals(requirements.getParameter(requirement, RESOLUTION_DIRECTIVE, true));
+		if (optional && !resolveOptional) {
+			return;
+		}
+		Capability<T> match = find(index.get(name), range, chosen);
+		if (match != null) {
+			// the capabilities of a selected candidate are provided once it
+			// has been resolved, avoid to select it twice
+			if (chosen.add(match.candidate)) {
+				selected.add(match.candidate);
+			}
+		} else if (unresolved != null && !optional) {
+			unresolved.add(kind + name + (version != null ? " " + range : ""));
+		}
+	}
+
+	/**
+	 * Returns the capability with the highest version in the given range,
+	 * preferring the already selected candidates.
+	 */
+	private static <T> Capability<T> find(List<Capability<T>> capabilities, VersionRange range, Set<Candidate<T>> chosen) {
+		Capability<T> match = null;
+		if (capabilities != null) {
+			for (Capability<T> capability : capabilities) {
+				if (!range.includes(capability.version)) {
+					continue;
+				}
+				if (capability.candidate != null && chosen.contains(capability.candidate)) {
+					return capability;
+				}
+				if (match == null || capability.version.compareTo(match.version) > 0) {
+					match = capability;
+				}
+			}
+		}
+		return match;
+	}
+
+	private static <T> void addCapabilities(Map<String, List<Capability<T>>> provided,
+											Map<String, List<Capability<T>>> bundles,
+											BundleInfo bundleInfo,
+											Candidate<T> candidate) {
+		index(bundles, bundleInfo.getName(), new Capability<T>(bundleInfo.getParsedVersion(), candidate));
+		Clauses exports = bundleInfo.getExports();
+		if (exports != null) {
+			for (int i = 0; i < exports.size(); i++) {
+				index(provided, exports.getPath(i), new Capability<T>(getVersion(exports, i), candidate));
+			}
+		}
+	}
+
+	private static Version getVersion(Clauses exports, int index) {
+		Version version = exports.getVersion(index);
+		return version != null ? version : Version.EMPTY;
+	}
+}
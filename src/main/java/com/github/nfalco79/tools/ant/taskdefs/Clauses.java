@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static com.github.nfalco79.tools.ant.taskdefs.SymbolTable.SYMBOLS;
+
+import java.util.Arrays;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.HeaderTokenizer;
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+
+/**
+ * The clauses of a manifest header like Export-Package, one for each path.
+ * <p>
+ * The path and the parameters of each clause are the strings of the
+ * {@link SymbolTable#SYMBOLS symbol table}, so the clauses of many bundles
+ * share them, and the version attribute of each clause is kept parsed,
+ * sharing the {@link Version} instances. Instances are immutable.
+ */
+/* package */ final class Clauses {
+
+	private static final String VERSION_ATTRIBUTE = "version";
+
+	/** Path and parameters of each clause. */
+	private final String[] symbols;
+	/** The value of the version attribute of each clause, if valid. */
+	private final Version[] versions;
+
+	private Clauses(String[] symbols, Version[] versions) {
+		this.symbols = symbols;
+		this.versions = versions;
+	}
+
+	/**
+	 * Parses a manifest header, a clause with more paths gives one clause
+	 * for each path.
+	 *
+	 * @param header
+	 *            the header value
+	 * @return the clauses of the header
+	 * @throws IllegalArgumentException
+	 *             if the header syntax is not valid
+	 */
+	public static Clauses parse(String header) {
+		String[] symbols = new String[8];
+		Version[] versions = new Version[4];
+		int size = 0;
+		int paths = 0;
+		String version = null;
+		HeaderTokenizer tokenizer = new HeaderTokenizer(header);
+		int token;
+		while ((token = tokenizer.next()) != HeaderTokenizer.END) {
+			if (token == HeaderTokenizer.PATH) {
+				if (size == versions.length) {
+					symbols = Arrays.copyOf(symbols, size * 4);
+					versions = Arrays.copyOf(versions, size * 2);
+				}
+				symbols[size * 2] = SYMBOLS.canonical(tokenizer.getName());
+				size++;
+				paths++;
+			} else if (token == HeaderTokenizer.ATTRIBUTE && VERSION_ATTRIBUTE.equals(tokenizer.getName())) {
+				version = tokenizer.getValue();
+			} else if (token == HeaderTokenizer.CLAUSE_END) {
+				String parameters = SYMBOLS.canonical(tokenizer.getParameters());
+				Version parsed = toVersion(version);
+				for (int i = size - paths; i < size; i++) {
+					symbols[i * 2 + 1] = parameters;
+					versions[i] = parsed;
+				}
+				paths = 0;
+				version = null;
+			}
+		}
+		return new Clauses(Arrays.copyOf(symbols, size * 2), Arrays.copyOf(versions, size));
+	}
+
+	/**
+	 * Returns the clauses of the given entries, as returned by
+	 * {@link #toArray()}.
+	 *
+	 * @param clauses
+	 *            the clauses
+	 * @return the clauses or {@code null} if the given array is
+	 *         {@code null}
+	 * @throws IllegalArgumentException
+	 *             if a clause syntax is not valid
+	 */
+	public static Clauses of(String[] clauses) {
+		if (clauses == null) {
+			return null;
+		}
+		StringBuilder header = new StringBuilder();
+		for (String clause : clauses) {
+			if (header.length() > 0) {
+				header.append(',');
+			}
+			header.append(clause);
+		}
+		return parse(header.toString());
+	}
+
+	private static Version toVersion(String version) {
+		if (version == null) {
+			return null;
+		}
+		try {
+			return Version.parseVersion(version);
+		} catch (IllegalArgumentException e) {
+			// like a range
+			return null;
+		}
+	}
+
+	public int size() {
+		return versions.length;
+	}
+
+	/**
+	 * Returns the path of a clause, as a package or bundle name.
+	 *
+	 * @param index
+	 *            the clause index
+	 * @return the path
+	 */
+	public String getPath(int index) {
+		return symbols[index * 2];
+	}
+
+	/**
+	 * Returns the attributes and directives of a clause.
+	 *
+	 * @param index
+	 *            the clause index
+	 * @return the parameters, empty if the clause has not any
+	 */
+	public String getParameters(int index) {
+		return symbols[index * 2 + 1];
+	}
+
+	/**
+	 * Returns the version attribute of a clause.
+	 *
+	 * @param index
+	 *            the clause index
+	 * @return the version or {@code null} if not specified or if it is not
+	 *         a single version
+	 */
+	public Version getVersion(int index) {
+		return versions[index];
+	}
+
+	/**
+	 * Returns the value of an attribute or directive of a clause.
+	 *
+	 * @param index
+	 *            the clause index
+	 * @param name
+	 *            the parameter name
+	 * @param directive
+	 *            if the parameter is a directive
+	 * @return the value or {@code null} if the clause has not the parameter
+	 */
+	public String getParameter(int index, String name, boolean directive) {
+		if (symbols[index * 2 + 1].isEmpty()) {
+			return null;
+		}
+		int type = directive ? HeaderTokenizer.DIRECTIVE : HeaderTokenizer.ATTRIBUTE;
+		HeaderTokenizer tokenizer = new HeaderTokenizer(getParameters(index));
+		int token;
+		while ((token = tokenizer.next()) != HeaderTokenizer.END) {
+			if (token == type && name.equals(tokenizer.getName())) {
+				return tokenizer.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a clause as written in the header.
+	 *
+	 * @param index
+	 *            the clause index
+	 * @return the path followed by the parameters
+	 */
+	public String get(int index) {
+		String parameters = getParameters(index);
+		return parameters.isEmpty() ? getPath(index) : getPath(index) + ';' + parameters;
+	}
+
+	/**
+	 * Returns all clauses as written in the header, the strings are built on
+	 * each call.
+	 *
+	 * @return the clauses
+	 */
+	public String[] toArray() {
+		String[] result = new String[size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the header value, the clauses separated by a comma.
+	 *
+	 * @return the header value
+	 */
+	@Override
+	public String toString() {
+		StringBuilder header = new StringBuilder();
+		for (int i = 0; i < size(); i++) {
+			if (i > 0) {
+				header.append(", ");
+			}
+			header.append(getPath(i));
+			if (!getParameters(i).isEmpty()) {
+				header.append(';').append(getParameters(i));
+			}
+		}
+		return header.toString();
+	}
+}
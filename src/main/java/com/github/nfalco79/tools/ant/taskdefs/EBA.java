@@ -17,11 +17,17 @@ package com.github.nfalco79.tools.ant.taskdefs;
 
 import static com.github.nfalco79.tools.ant.taskdefs.ApplicationConstants.*;
 
-import java.io.IOException;
+import java.io.File;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -41,6 +47,8 @@ public class EBA extends ESA {
 	private static final String APPLICATION_NAME = META_INF + "APPLICATION.MF";
 
 	private Collection<ResourceCollection> wabResources = new ArrayList<ResourceCollection>(1);
+	private List<Future<BundleInfo>> wabAnalysis;
+	private List<Resource> analysedWABs;
 
 	/**
 	 * Adds a set of files that can be read from an archive and be given a
@@ -73,6 +81,94 @@ public class EBA extends ESA {
 		return APPLICATION_NAME;
 	}
 
+	@Override
+	protected void fingerprint(MessageDigest digest) {
+		super.fingerprint(digest);
+		for (ResourceCollection rc : wabResources) {
+			@SuppressWarnings("unchecked")
+			Iterator<Resource> it = rc.iterator();
+			while (it.hasNext()) {
+				fingerprint(digest, it.next());
+			}
+		}
+	}
+
+	@Override
+	protected ArchiveState getResourcesToAdd(ResourceCollection[] rcs, File zipFile, boolean needsUpdate) throws BuildException {
+		ArchiveState state = super.getResourcesToAdd(rcs, zipFile, needsUpdate);
+		wabAnalysis = null;
+		analysedWABs = null;
+		if (state.isOutOfDate()) {
+			// analysed while the archive entries are written
+			List<Future<BundleInfo>> analysis = new ArrayList<Future<BundleInfo>>();
+			List<Resource> wabs = new ArrayList<Resource>();
+			for (ResourceCollection rc : wabResources) {
+				@SuppressWarnings("unchecked")
+				Iterator<Resource> it = rc.iterator();
+				while (it.hasNext()) {
+					final Resource resource = it.next();
+					wabs.add(resource);
+					analysis.add(getExecutor().submit(new Callable<BundleInfo>() {
+						@Override
+						public BundleInfo call() throws Exception {
+							return getBundleInfo(resource);
+						}
+					}));
+				}
+			}
+			wabAnalysis = analysis;
+			analysedWABs = wabs;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the informations of the WAB resources, waiting for the analysis
+	 * started when the archive content was collected.
+	 */
+	private List<BundleInfo> getWABs() throws BuildException {
+		List<BundleInfo> wabs = new ArrayList<BundleInfo>();
+		if (wabAnalysis == null) {
+			for (ResourceCollection rc : wabResources) {
+				@SuppressWarnings("unchecked")
+				Iterator<Resource> it = rc.iterator();
+				while (it.hasNext()) {
+					Resource resource = it.next();
+					try {
+						wabs.add(getBundleInfo(resource));
+					} catch (RuntimeException e) {
+						throw analysisFailure(resource, e);
+					}
+				}
+			}
+			return wabs;
+		}
+
+		try {
+			for (int i = 0; i < wabAnalysis.size(); i++) {
+				try {
+					wabs.add(wabAnalysis.get(i).get());
+				} catch (ExecutionException e) {
+					throw analysisFailure(analysedWABs.get(i), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while reading WAB manifests", e, getLocation());
+		} finally {
+			wabAnalysis = null;
+			analysedWABs = null;
+		}
+		return wabs;
+	}
+
+	private BuildException analysisFailure(Resource wab, Throwable cause) {
+		while (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return new BuildException("Could not analyse the WAB " + wab.getName() + ": " + cause.getMessage(), cause, getLocation());
+	}
+
 	// Use-Bundle: javax.jcr;version=2.0.0
 
 	@Override
@@ -87,25 +183,15 @@ public class EBA extends ESA {
 			manifest.addConfiguredAttribute(new Attribute(APPLICATION_SYMBOLIC_NAME, getSymbolicName()));
 
 			Collection<BundleInfo> applicationContent = new ArrayList<BundleInfo>(bundles);
-			for (ResourceCollection rc : wabResources) {
-				@SuppressWarnings("unchecked")
-				Iterator<Resource> it = rc.iterator();
-				while (it.hasNext()) {
-					Resource resource = it.next();
-					try {
-						BundleInfo bundleInfo = parseManifest(resource);
-						if (bundleInfo.getType() == ContentType.bundle && bundleInfo.getContext() != null) {
-							applicationContent.add(bundleInfo);
-						}
-					} catch (IOException e) {
-						log("Could not parse resource " + resource.getName(), Project.MSG_WARN);
-					}
+			for (BundleInfo bundleInfo : getWABs()) {
+				if (bundleInfo != null && bundleInfo.getType() == ContentType.bundle && bundleInfo.getContext() != null) {
+					applicationContent.add(bundleInfo);
 				}
 			}
 
 			if (!applicationContent.isEmpty()) {
 				Collection<String> bundles = new ArrayList<String>();
-				for (BundleInfo bundleInfo : applicationContent) {
+				for (BundleInfo bundleInfo : getContent(applicationContent)) {
 					if (bundleInfo.getType() == ContentType.bundle) {
 						bundles.add(MessageFormat.format("{0};version=\"{1}\"", bundleInfo.getName(), bundleInfo.getVersion()));
 					}
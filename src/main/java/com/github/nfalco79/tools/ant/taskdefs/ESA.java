@@ -19,21 +19,49 @@ import static com.github.nfalco79.tools.ant.taskdefs.BundleConstants.*;
 import static com.github.nfalco79.tools.ant.taskdefs.IBMSubsystemConstants.*;
 import static com.github.nfalco79.tools.ant.taskdefs.SubsystemConstants.*;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -43,17 +71,31 @@ import org.apache.tools.ant.taskdefs.Manifest;
 import org.apache.tools.ant.taskdefs.Manifest.Attribute;
 import org.apache.tools.ant.taskdefs.ManifestException;
 import org.apache.tools.ant.taskdefs.Zip;
+import org.apache.tools.ant.types.ArchiveFileSet;
 import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
 import org.apache.tools.ant.types.ZipFileSet;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.util.DateUtils;
 import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.NullOutputStream;
 import org.apache.tools.zip.JarMarker;
 import org.apache.tools.zip.ZipExtraField;
 import org.apache.tools.zip.ZipOutputStream;
 
 import com.github.nfalco79.tools.ant.taskdefs.BundleInfo.ContentType;
+import com.github.nfalco79.tools.ant.taskdefs.FeatureGraph.Feature;
+import com.github.nfalco79.tools.ant.taskdefs.util.ArchiveUtils;
+import com.github.nfalco79.tools.ant.taskdefs.util.CountingInputStream;
+import com.github.nfalco79.tools.ant.taskdefs.util.CountingOutputStream;
+import com.github.nfalco79.tools.ant.taskdefs.util.DeflatePolicy;
+import com.github.nfalco79.tools.ant.taskdefs.util.HeaderTokenizer;
 import com.github.nfalco79.tools.ant.taskdefs.util.StringUtils;
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+import com.github.nfalco79.tools.ant.taskdefs.util.ZipIndex;
+import com.github.nfalco79.tools.ant.taskdefs.util.ZipRewriter;
 
 public class ESA extends Zip {
 
@@ -62,18 +104,67 @@ public class ESA extends Zip {
 	private static final String OSGI_INF = "OSGI-INF/";
 	/** The subsystem file name. */
 	private static final String SUBSYTEM_NAME = OSGI_INF + "SUBSYSTEM.MF";
+	/** The content index file name. */
+	private static final String INDEX_NAME = OSGI_INF + "INDEX.MF";
+	/** The index attributes of each entry, beside the OSGi headers. */
+	private static final String INDEX_CONTENT_TYPE = "Content-Type";
+	private static final String INDEX_SIZE = "Content-Size";
+	private static final String INDEX_DIGEST = "SHA-256-Digest";
+	/** Zip timestamps have a granularity of two seconds. */
+	private static final long ROUNDUP_MILLIS = 1999;
+	/** The suffix of the file that stores the fingerprint of the archive inputs. */
+	private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+	/** The project reference to the resolvers of the last bundle pools. */
+	private static final String RESOLVERS_REFERENCE = "esa.bundleResolvers";
+	/** How many bundle pools keep their resolver in a project. */
+	private static final int RESOLVERS_SIZE = 8;
 
 	/**
 	 * Extra fields needed to make Solaris recognize the archive as a jar file.
 	 */
 	private static final ZipExtraField[] JAR_MARKER = new ZipExtraField[] { JarMarker.getInstance() };
 
+	/** Marks the resources that could not be analysed. */
+	private static final BundleInfo UNREADABLE = new BundleInfo();
+
 	private String name;
 	private String symbolicName;
 	private String version;
 	private String license;
 	private Visibility visibility = Visibility.PRIVATE;
 	private boolean singleton;
+	private int threads = 1;
+	private File cacheDir;
+	private boolean cacheChecksum;
+	private BundleInfoCache cache;
+	private boolean incremental;
+	private boolean compress = true;
+	private boolean parallelCompression;
+	private boolean parallelDeflate;
+	private boolean rewritable;
+	private boolean archiveWritten;
+	private CompressionPolicy compressionPolicy = CompressionPolicy.ALWAYS;
+	private DuplicatePolicy duplicatePolicy;
+	private boolean index;
+	private final Map<String, Resource> indexEntries = new TreeMap<String, Resource>();
+	private DeflatePolicy deflatePolicy;
+	private boolean rawCopy;
+	private boolean roundUp = true;
+	private boolean reproducible;
+	private String contentHashProperty;
+	private long inputsLastModified;
+	private final Map<String, ZipRewriter.RawSource> rawSources = new HashMap<String, ZipRewriter.RawSource>();
+	private ExecutorService executor;
+	private ConcurrentMap<String, BundleInfo> bundleIndex = new ConcurrentHashMap<String, BundleInfo>();
+	private ExecutorService sharedExecutor;
+	private int sharedParallelism;
+	private boolean transitiveFeatures;
+	private final Collection<ResourceCollection> featurePath = new ArrayList<ResourceCollection>(1);
+	private final List<Resource> featureResources = new ArrayList<Resource>();
+	private final Collection<ResourceCollection> bundlePool = new ArrayList<ResourceCollection>(1);
+	private boolean resolveOptional;
+	private ResolvedBundles resolvedBundles;
+	private String fingerprint;
 	protected Collection<BundleInfo> bundles = new ArrayList<BundleInfo>();
 
 	/**
@@ -119,139 +210,1398 @@ public class ESA extends Zip {
 			return Arrays.copyOf(VALUES, VALUES.length);
 		}
 
-		/**
-		 * Indicate if the visibility is public.
-		 *
-		 * @return true if the visibility specified is public.
-		 */
-		public boolean isPublic() {
-			return "public".equalsIgnoreCase(getValue());
+		/**
+		 * Indicate if the visibility is public.
+		 *
+		 * @return true if the visibility specified is public.
+		 */
+		public boolean isPublic() {
+			return "public".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if the visibility is protected.
+		 *
+		 * @return true if the visibility specified is protected.
+		 */
+		public boolean isProtected() {
+			return "protected".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if the visibility is private.
+		 *
+		 * @return true if the visibility specified is private.
+		 */
+		public boolean isPrivate() {
+			return "private".equalsIgnoreCase(getValue());
+		}
+
+	}
+
+	/**
+	 * EnumeratedAttribute covering the compression policies, either always
+	 * deflate entries or automatically store entries that do not benefit
+	 * from compression.
+	 */
+	public static class CompressionPolicy extends EnumeratedAttribute {
+
+		private static final String[] VALUES = { "always", "auto" };
+
+		/** Deflate all entries. */
+		public static final CompressionPolicy ALWAYS = new CompressionPolicy("always");
+
+		/** Store nested archives and incompressible entries. */
+		public static final CompressionPolicy AUTO = new CompressionPolicy("auto");
+
+		/**
+		 * Default constructor.
+		 */
+		public CompressionPolicy() {
+		}
+
+		/**
+		 * Construct a new policy with the specified value.
+		 *
+		 * @param value
+		 *            the EnumeratedAttribute value.
+		 */
+		public CompressionPolicy(String value) {
+			setValue(value);
+		}
+
+		/**
+		 * {@inheritDoc}.
+		 *
+		 * @see EnumeratedAttribute#getValues
+		 */
+		@Override
+		public String[] getValues() {
+			return Arrays.copyOf(VALUES, VALUES.length);
+		}
+
+		/**
+		 * Indicate if the policy decides automatically which entry to
+		 * deflate.
+		 *
+		 * @return true if the policy is auto.
+		 */
+		public boolean isAuto() {
+			return "auto".equalsIgnoreCase(getValue());
+		}
+	}
+
+	/**
+	 * EnumeratedAttribute covering what to do when the content has the same
+	 * bundle more than once, either with identical content or with the same
+	 * symbolic name.
+	 */
+	public static class DuplicatePolicy extends EnumeratedAttribute {
+
+		private static final String[] VALUES = { "fail", "warn", "keephighest", "dropidentical" };
+
+		/** Fails the build. */
+		public static final DuplicatePolicy FAIL = new DuplicatePolicy("fail");
+
+		/**
+		 * Packages all bundles, logging the duplicates, and declares each
+		 * packaged version in the content.
+		 */
+		public static final DuplicatePolicy WARN = new DuplicatePolicy("warn");
+
+		/** Packages only the highest version of each symbolic name. */
+		public static final DuplicatePolicy KEEP_HIGHEST = new DuplicatePolicy("keephighest");
+
+		/** Packages once the files with identical content. */
+		public static final DuplicatePolicy DROP_IDENTICAL = new DuplicatePolicy("dropidentical");
+
+		/**
+		 * Default constructor.
+		 */
+		public DuplicatePolicy() {
+		}
+
+		/**
+		 * Construct a new policy with the specified value.
+		 *
+		 * @param value
+		 *            the EnumeratedAttribute value.
+		 */
+		public DuplicatePolicy(String value) {
+			setValue(value);
+		}
+
+		/**
+		 * {@inheritDoc}.
+		 *
+		 * @see EnumeratedAttribute#getValues
+		 */
+		@Override
+		public String[] getValues() {
+			return Arrays.copyOf(VALUES, VALUES.length);
+		}
+
+		/**
+		 * Indicate if duplicates fail the build.
+		 *
+		 * @return true if the policy is fail.
+		 */
+		public boolean isFail() {
+			return "fail".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if only the highest version of a symbolic name is
+		 * packaged.
+		 *
+		 * @return true if the policy is keephighest.
+		 */
+		public boolean isKeepHighest() {
+			return "keephighest".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if files with identical content are packaged once.
+		 *
+		 * @return true if the policy is keephighest or dropidentical.
+		 */
+		public boolean isDropIdentical() {
+			return isKeepHighest() || "dropidentical".equalsIgnoreCase(getValue());
+		}
+	}
+
+	/**
+	 * The bundles of the pool that provide the requirements of the content,
+	 * packaged as any other resource.
+	 */
+	private static class ResolvedBundles implements ResourceCollection {
+		private final List<Resource> resources = new ArrayList<Resource>();
+
+		@Override
+		public Iterator<Resource> iterator() {
+			return resources.iterator();
+		}
+
+		@Override
+		public int size() {
+			return resources.size();
+		}
+
+		@Override
+		public boolean isFilesystemOnly() {
+			return false;
+		}
+	}
+
+	@Override
+	protected ArchiveState getResourcesToAdd(	ResourceCollection[] rcs,
+												File zipFile,
+												boolean needsUpdate) throws BuildException {
+		List<Resource> resources = new ArrayList<Resource>();
+		featureResources.clear();
+		inputsLastModified = 0;
+		if (resolvedBundles != null) {
+			resolvedBundles.resources.clear();
+		}
+		for (ResourceCollection rc : rcs) {
+			for (@SuppressWarnings("unchecked")
+			Iterator<Resource> iterator = rc.iterator(); iterator.hasNext();) {
+				Resource resource = iterator.next();
+				resources.add(resource);
+				if (resource.getName().endsWith(".esa")) {
+					featureResources.add(resource);
+				}
+				inputsLastModified = Math.max(inputsLastModified, resource.getLastModified());
+			}
+		}
+		List<Resource> pool = getBundlePool();
+		if (resolvedBundles != null && !incremental) {
+			addResolvedBundles(resources, pool);
+		}
+
+		if (incremental) {
+			// the pool is parsed only if the archive has to be built
+			String currentFingerprint = computeFingerprint(resources, pool);
+			if (!currentFingerprint.equals(readFingerprint())) {
+				log("Manifest inputs of " + zipFile.getName() + " have changed", Project.MSG_VERBOSE);
+				// stored once the archive has been built successfully
+				fingerprint = currentFingerprint;
+				needsUpdate = true;
+			}
+		}
+
+		ArchiveState state = super.getResourcesToAdd(rcs, zipFile, needsUpdate);
+		if (state.isOutOfDate()) {
+			if (resolvedBundles != null && incremental) {
+				List<Resource> resolved = addResolvedBundles(resources, pool);
+				Resource[][] toAdd = state.getResourcesToAdd();
+				for (int i = 0; i < rcs.length; i++) {
+					if (rcs[i] == resolvedBundles) {
+						toAdd[i] = resolved.toArray(new Resource[resolved.size()]);
+					}
+				}
+			}
+			// may be called more than once for the same execution
+			bundles.clear();
+			if (duplicatePolicy != null) {
+				resources = removeDuplicates(resources, state.getResourcesToAdd());
+			}
+			bundles.addAll(parseManifests(resources));
+			if (rewritable && (parallelDeflate || rawCopy || reproducible) && !isRewritable(state.getResourcesToAdd())) {
+				rewritable = false;
+				log(zipFile.getName() + " needs the Zip64 extensions, parallelCompression, rawCopy and reproducible are ignored", Project.MSG_WARN);
+				if (parallelDeflate) {
+					super.setCompress(compress);
+				}
+				rawSources.clear();
+			}
+			if (rawCopy && rewritable) {
+				collectRawSources(rcs, state.getResourcesToAdd());
+			}
+			if (index) {
+				collectIndexEntries(rcs, state.getResourcesToAdd());
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Returns if the archive can be assembled and then rewritten without the
+	 * Zip64 extensions, the stored archive must not exceed the zip limits
+	 * even if the deflated one would not.
+	 */
+	private boolean isRewritable(Resource[][] toAdd) {
+		// manifest and content index
+		long entries = 2;
+		long size = 0;
+		long namesLength = 0;
+		Set<String> directories = new HashSet<String>();
+		for (Resource[] resources : toAdd) {
+			for (Resource resource : resources) {
+				String name = resource.getName().replace('\\', '/');
+				entries++;
+				size += Math.max(resource.getSize(), 0);
+				namesLength += name.length();
+				// parent directories are added as entries
+				for (int i = name.lastIndexOf('/'); i > 0 && directories.add(name.substring(0, i)); i = name.lastIndexOf('/', i - 1)) {
+					entries++;
+					namesLength += i + 1;
+				}
+			}
+		}
+		return ZipRewriter.isRewritable(entries, size, namesLength);
+	}
+
+	/**
+	 * Maps the archive path of each resource to add to the resource.
+	 */
+	private void collectIndexEntries(ResourceCollection[] rcs, Resource[][] toAdd) {
+		indexEntries.clear();
+		for (int i = 0; i < rcs.length; i++) {
+			String prefix = "";
+			String fullpath = "";
+			if (rcs[i] instanceof ArchiveFileSet) {
+				ArchiveFileSet afs = (ArchiveFileSet) rcs[i];
+				fullpath = afs.getFullpath(getProject());
+				prefix = afs.getPrefix(getProject());
+				if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+					prefix += '/';
+				}
+			}
+			for (Resource resource : toAdd[i]) {
+				if (!resource.isDirectory()) {
+					indexEntries.put(!fullpath.isEmpty() ? fullpath : prefix + resource.getName().replace('\\', '/'), resource);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks for files with identical content and for bundles with the same
+	 * symbolic name, applying the duplicate policy. The files that must not
+	 * be packaged are removed from the resources to add.
+	 *
+	 * @return the resources without those not packaged
+	 */
+	private List<Resource> removeDuplicates(List<Resource> resources, Resource[][] toAdd) throws BuildException {
+		// content digests are computed while manifests are read
+		parseManifests(resources);
+
+		Map<String, Resource> byDigest = new HashMap<String, Resource>();
+		Map<String, Resource> byName = new HashMap<String, Resource>();
+		Collection<String> dropped = new HashSet<String>();
+		List<String> duplicates = new ArrayList<String>();
+		for (Resource resource : resources) {
+			BundleInfo bundleInfo = getBundleInfo(resource);
+			if (bundleInfo == null || bundleInfo.getDigest() == null) {
+				continue;
+			}
+
+			Resource identical = byDigest.get(bundleInfo.getDigest());
+			if (identical != null) {
+				duplicates.add(resource.getName() + " is identical to " + identical.getName());
+				if (duplicatePolicy.isDropIdentical()) {
+					dropped.add(getResourceKey(resource));
+				}
+				continue;
+			}
+			byDigest.put(bundleInfo.getDigest(), resource);
+
+			if (bundleInfo.getType() != ContentType.bundle) {
+				continue;
+			}
+			Resource sameName = byName.get(bundleInfo.getName());
+			if (sameName == null) {
+				byName.put(bundleInfo.getName(), resource);
+				continue;
+			}
+			BundleInfo other = getBundleInfo(sameName);
+			duplicates.add(MessageFormat.format("{0} and {1} are both bundle {2}, versions {3} and {4}", //
+					sameName.getName(), resource.getName(), bundleInfo.getName(), other.getVersion(), bundleInfo.getVersion()));
+			if (duplicatePolicy.isKeepHighest()) {
+				if (bundleInfo.getParsedVersion().compareTo(other.getParsedVersion()) > 0) {
+					dropped.add(getResourceKey(sameName));
+					byName.put(bundleInfo.getName(), resource);
+				} else {
+					dropped.add(getResourceKey(resource));
+				}
+			}
+		}
+
+		if (duplicates.isEmpty()) {
+			return resources;
+		}
+		if (duplicatePolicy.isFail()) {
+			throw new BuildException("Duplicate bundles in " + archiveType + ": " + StringUtils.join(duplicates, "; "), getLocation());
+		}
+		for (String duplicate : duplicates) {
+			log(duplicate, Project.MSG_WARN);
+		}
+		if (dropped.isEmpty()) {
+			return resources;
+		}
+
+		for (int i = 0; i < toAdd.length; i++) {
+			List<Resource> kept = new ArrayList<Resource>(toAdd[i].length);
+			for (Resource resource : toAdd[i]) {
+				if (!dropped.contains(getResourceKey(resource))) {
+					kept.add(resource);
+				} else {
+					log(resource.getName() + " is not packaged", Project.MSG_INFO);
+				}
+			}
+			toAdd[i] = kept.toArray(new Resource[kept.size()]);
+		}
+		List<Resource> result = new ArrayList<Resource>(resources.size() - dropped.size());
+		for (Resource resource : resources) {
+			if (!dropped.contains(getResourceKey(resource))) {
+				result.add(resource);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the candidate bundles of the pool.
+	 */
+	private List<Resource> getBundlePool() {
+		List<Resource> pool = new ArrayList<Resource>();
+		for (ResourceCollection rc : bundlePool) {
+			for (@SuppressWarnings("unchecked")
+			Iterator<Resource> it = rc.iterator(); it.hasNext();) {
+				Resource resource = it.next();
+				if (resource.getName().endsWith(".jar")) {
+					pool.add(resource);
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Resolves the bundles of the pool and adds them to the resources.
+	 *
+	 * @return the resolved bundles
+	 */
+	private List<Resource> addResolvedBundles(List<Resource> resources, List<Resource> pool) throws BuildException {
+		List<Resource> resolved = resolveBundles(resources, pool);
+		for (Resource resource : resolved) {
+			resolvedBundles.resources.add(resource);
+			resources.add(resource);
+			inputsLastModified = Math.max(inputsLastModified, resource.getLastModified());
+		}
+		return resolved;
+	}
+
+	/**
+	 * Returns the bundles of the pool needed, directly or not, to satisfy the
+	 * Import-Package and Require-Bundle headers of the given resources.
+	 */
+	private List<Resource> resolveBundles(List<Resource> resources, List<Resource> pool) throws BuildException {
+		BundleResolver<Resource> resolver = getBundleResolver(pool);
+		Collection<BundleInfo> content = parseManifests(resources);
+		for (BundleInfo bundleInfo : content) {
+			if (bundleInfo.getType() == ContentType.bundle) {
+				try {
+					BundleResolver.validate(bundleInfo);
+				} catch (IllegalArgumentException e) {
+					throw new BuildException("Invalid requirement in bundle " + bundleInfo.getName() + ": " + e.getMessage(), e, getLocation());
+				}
+			}
+		}
+		List<String> unresolved = new ArrayList<String>();
+		List<Resource> resolved = resolver.resolve(content, resolveOptional, unresolved);
+		for (Resource resource : resolved) {
+			log("Adding " + resource.getName() + " from the bundle pool", Project.MSG_VERBOSE);
+		}
+		for (String requirement : unresolved) {
+			log("Unresolved requirement on " + requirement, Project.MSG_WARN);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Returns the resolver that indexes the bundles of the pool. The index is
+	 * built once for the same pool, also by other tasks of the project, and
+	 * rebuilt only when a bundle of the pool changes.
+	 */
+	private BundleResolver<Resource> getBundleResolver(List<Resource> pool) throws BuildException {
+		StringBuilder poolKey = new StringBuilder();
+		for (Resource resource : pool) {
+			poolKey.append(getResourceKey(resource)).append('\n');
+		}
+		Map<String, BundleResolver<Resource>> resolvers = getBundleResolvers(getProject());
+		BundleResolver<Resource> resolver = resolvers.get(poolKey.toString());
+		if (resolver != null) {
+			return resolver;
+		}
+
+		// analyse the pool concurrently, the informations are then memoized
+		parseManifests(pool);
+
+		resolver = new BundleResolver<Resource>();
+		for (Resource resource : pool) {
+			BundleInfo bundleInfo = getBundleInfo(resource);
+			if (bundleInfo != null && bundleInfo.getType() == ContentType.bundle) {
+				try {
+					resolver.addCandidate(resource, bundleInfo);
+				} catch (IllegalArgumentException e) {
+					log("Ignoring " + resource.getName() + " of the bundle pool: " + e.getMessage(), Project.MSG_WARN);
+				}
+			}
+		}
+		resolvers.put(poolKey.toString(), resolver);
+		return resolver;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, BundleResolver<Resource>> getBundleResolvers(Project project) {
+		synchronized (project) {
+			Object resolvers = project.getReference(RESOLVERS_REFERENCE);
+			if (!(resolvers instanceof Map)) {
+				resolvers = Collections.synchronizedMap(new LinkedHashMap<String, BundleResolver<Resource>>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, BundleResolver<Resource>> eldest) {
+						return size() > RESOLVERS_SIZE;
+					}
+				});
+				project.addReference(RESOLVERS_REFERENCE, resolvers);
+			}
+			return (Map<String, BundleResolver<Resource>>) resolvers;
+		}
+	}
+
+	/**
+	 * Maps the archive path of each entry taken from another archive to its
+	 * source entry, if its data can be copied still compressed.
+	 */
+	private void collectRawSources(ResourceCollection[] rcs, Resource[][] toAdd) {
+		rawSources.clear();
+		for (int i = 0; i < rcs.length; i++) {
+			if (!(rcs[i] instanceof ZipFileSet) || toAdd[i].length == 0) {
+				continue;
+			}
+			ZipFileSet zfs = (ZipFileSet) rcs[i];
+			File src = zfs.getSrc(getProject());
+			if (src == null) {
+				continue;
+			}
+
+			String prefix = zfs.getPrefix(getProject());
+			if (!prefix.isEmpty() && !prefix.endsWith("/") && !prefix.endsWith("\\")) {
+				prefix += "/";
+			}
+			String fullpath = zfs.getFullpath(getProject());
+			Charset encoding = zfs.getEncoding() != null ? Charset.forName(zfs.getEncoding()) : Charset.defaultCharset();
+
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+				ZipIndex index = ZipIndex.read(channel, encoding);
+				for (Resource resource : toAdd[i]) {
+					ZipIndex.Entry entry = index.getEntry(resource.getName());
+					if (resource.isDirectory() || entry == null || entry.isEncrypted() //
+							|| (entry.getMethod() != ZipIndex.STORED && entry.getMethod() != ZipIndex.DEFLATED)) {
+						continue;
+					}
+					String name = fullpath.isEmpty() ? resource.getName() : fullpath;
+					String vPath = prefix + name.replace(File.separatorChar, '/');
+					if (!vPath.equals(getManifestFilePath())) {
+						rawSources.put(vPath, new ZipRewriter.RawSource(src, entry.getName()));
+					}
+				}
+			} catch (IOException e) {
+				log("Entries of " + src + " will be recompressed: " + e.getMessage(), Project.MSG_VERBOSE);
+			} finally {
+				FileUtils.close(channel);
+			}
+		}
+	}
+
+	/**
+	 * Feeds the digest with everything the generated manifest and the
+	 * archive content depend on, except the archive resources that are
+	 * handled by the caller.
+	 *
+	 * @param digest
+	 *            the fingerprint digest
+	 */
+	protected void fingerprint(MessageDigest digest) {
+		fingerprint(digest, archiveType);
+		fingerprint(digest, name);
+		fingerprint(digest, symbolicName);
+		fingerprint(digest, version);
+		fingerprint(digest, license);
+		fingerprint(digest, visibility.getValue());
+		fingerprint(digest, String.valueOf(singleton));
+		fingerprint(digest, String.valueOf(compress));
+		fingerprint(digest, compressionPolicy.getValue());
+		fingerprint(digest, String.valueOf(rawCopy));
+		fingerprint(digest, String.valueOf(reproducible));
+		fingerprint(digest, String.valueOf(transitiveFeatures));
+		fingerprint(digest, duplicatePolicy != null ? duplicatePolicy.getValue() : null);
+		fingerprint(digest, String.valueOf(index));
+		for (ResourceCollection rc : featurePath) {
+			for (@SuppressWarnings("unchecked")
+			Iterator<Resource> it = rc.iterator(); it.hasNext();) {
+				fingerprint(digest, it.next());
+			}
+		}
+		fingerprint(digest, getModificationtime());
+	}
+
+	/**
+	 * Feeds the digest with the identity of the given resource.
+	 *
+	 * @param digest
+	 *            the fingerprint digest
+	 * @param resource
+	 *            a resource that contributes to the archive
+	 */
+	protected void fingerprint(MessageDigest digest, Resource resource) {
+		FileProvider fileProvider = resource.as(FileProvider.class);
+		fingerprint(digest, fileProvider != null ? fileProvider.getFile().getAbsolutePath() : resource.toLongString());
+		fingerprint(digest, resource.getName());
+		fingerprint(digest, String.valueOf(resource.getSize()));
+		fingerprint(digest, String.valueOf(resource.getLastModified()));
+	}
+
+	protected static void fingerprint(MessageDigest digest, String value) {
+		// a null value differs from an empty one
+		digest.update((byte) (value != null ? 1 : 0));
+		if (value != null) {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+	}
+
+	private String computeFingerprint(List<Resource> resources, List<Resource> pool) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new BuildException(e, getLocation());
+		}
+		fingerprint(digest);
+		for (Resource resource : resources) {
+			fingerprint(digest, resource);
+		}
+		digest.update((byte) 0);
+		for (Resource resource : pool) {
+			fingerprint(digest, resource);
+		}
+		return StringUtils.toHex(digest.digest());
+	}
+
+	private File getFingerprintFile() {
+		return new File(zipFile.getPath() + FINGERPRINT_SUFFIX);
+	}
+
+	private String readFingerprint() {
+		File fingerprintFile = getFingerprintFile();
+		if (!zipFile.isFile() || !fingerprintFile.isFile()) {
+			return null;
+		}
+		try {
+			return new String(Files.readAllBytes(fingerprintFile.toPath()), StandardCharsets.US_ASCII).trim();
+		} catch (IOException e) {
+			log("Could not read " + fingerprintFile + ": " + e.getMessage(), Project.MSG_VERBOSE);
+			return null;
+		}
+	}
+
+	private void writeFingerprint() {
+		File fingerprintFile = getFingerprintFile();
+		try {
+			Files.write(fingerprintFile.toPath(), fingerprint.getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException e) {
+			log("Could not write " + fingerprintFile + ": " + e.getMessage(), Project.MSG_WARN);
+		}
+	}
+
+	private String computeContentHash() {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			InputStream is = Files.newInputStream(getDestFile().toPath());
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+				}
+			} finally {
+				FileUtils.close(is);
+			}
+			return StringUtils.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new BuildException(e);
+		} catch (IOException e) {
+			throw new BuildException("Could not compute the hash of " + getDestFile(), e, getLocation());
+		}
+	}
+
+	/**
+	 * Extracts the bundle informations of the given resources. When more than
+	 * one thread is configured the manifests are read concurrently, the
+	 * returned list keeps the order of the given resources anyway.
+	 *
+	 * @param resources
+	 *            the resources to analyse
+	 * @return the bundle informations of all readable resources
+	 * @throws BuildException
+	 *             if a manifest is invalid
+	 */
+	protected List<BundleInfo> parseManifests(List<Resource> resources) throws BuildException {
+		List<BundleInfo> result = new ArrayList<BundleInfo>(resources.size());
+		if (getParallelism() <= 1 || resources.size() < 2) {
+			for (Resource resource : resources) {
+				BundleInfo bundleInfo = getBundleInfo(resource);
+				if (bundleInfo != null) {
+					result.add(bundleInfo);
+				}
+			}
+			return result;
+		}
+
+		List<Callable<BundleInfo>> tasks = new ArrayList<Callable<BundleInfo>>(resources.size());
+		for (final Resource resource : resources) {
+			tasks.add(new Callable<BundleInfo>() {
+				@Override
+				public BundleInfo call() throws Exception {
+					return getBundleInfo(resource);
+				}
+			});
+		}
+
+		try {
+			for (Future<BundleInfo> future : getExecutor().invokeAll(tasks)) {
+				BundleInfo bundleInfo = future.get();
+				if (bundleInfo != null) {
+					result.add(bundleInfo);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while reading bundle manifests", e, getLocation());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BuildException) {
+				throw (BuildException) e.getCause();
+			}
+			throw new BuildException(e.getCause(), getLocation());
+		}
+		return result;
+	}
+
+	private void rewrite(boolean deflate) {
+		ZipRewriter rewriter = new ZipRewriter(getExecutor(), getParallelism());
+		rewriter.setDeflate(deflate);
+		rewriter.setLevel(getLevel());
+		rewriter.setDeflatePolicy(deflatePolicy);
+		rewriter.setRawSources(rawSources);
+		rewriter.setNormalize(reproducible);
+		if (getModificationtime() != null) {
+			rewriter.setNormalizedTime(getManifestTime());
+		}
+		rewriter.setEncoding(getEncoding() != null ? Charset.forName(getEncoding()) : Charset.defaultCharset());
+		try {
+			rewriter.rewrite(zipFile);
+		} catch (IOException e) {
+			if (!zipFile.delete()) {
+				zipFile.deleteOnExit();
+			}
+			throw new BuildException("Problem compressing " + archiveType + ": " + e.getMessage(), e, getLocation());
+		}
+	}
+
+	/**
+	 * Returns the bundle informations of the given resource. Each resource is
+	 * analysed once per execution, looking first into the bundle cache if
+	 * configured.
+	 *
+	 * @param resource
+	 *            the resource to analyse
+	 * @return the bundle informations or {@code null} if the resource could
+	 *         not be read
+	 */
+	protected BundleInfo getBundleInfo(Resource resource) {
+		String key = getResourceKey(resource);
+		BundleInfo bundleInfo = bundleIndex.get(key);
+		if (bundleInfo == null) {
+			bundleInfo = analyseResource(resource);
+			BundleInfo previous = bundleIndex.putIfAbsent(key, bundleInfo != null ? bundleInfo : UNREADABLE);
+			if (previous != null) {
+				// analysed concurrently
+				bundleInfo = previous;
+			}
+		} else if (isDigestMissing(bundleInfo)) {
+			// analysed by a task of the same batch without duplicate policy
+			bundleInfo = analyseResource(resource);
+			bundleIndex.put(key, bundleInfo != null ? bundleInfo : UNREADABLE);
+		}
+		return bundleInfo != UNREADABLE ? bundleInfo : null;
+	}
+
+	/**
+	 * Identifies a resource and its current content.
+	 */
+	private static String getResourceKey(Resource resource) {
+		FileProvider fileProvider = resource.as(FileProvider.class);
+		String identity = fileProvider != null ? fileProvider.getFile().getAbsolutePath() : resource.toLongString();
+		return identity + '|' + resource.getLastModified() + '|' + resource.getSize();
+	}
+
+	private BundleInfo analyseResource(Resource resource) {
+		try {
+			FileProvider fileProvider = cache != null ? resource.as(FileProvider.class) : null;
+			if (fileProvider == null) {
+				return parseManifest(resource);
+			}
+
+			File file = fileProvider.getFile();
+			BundleInfo bundleInfo = cache.get(file);
+			if (bundleInfo == null || isDigestMissing(bundleInfo)) {
+				bundleInfo = parseManifest(resource);
+				cache.put(file, bundleInfo);
+			}
+			return bundleInfo;
+		} catch (IOException e) {
+			log("Could not parse resource " + resource.getName() + ": " + e.getMessage(), Project.MSG_WARN);
+			return null;
+		}
+	}
+
+	private boolean isDigestNeeded() {
+		return duplicatePolicy != null || index;
+	}
+
+	/**
+	 * Returns if the content digest of an archive is needed but it was not
+	 * computed when the archive was analysed.
+	 */
+	private boolean isDigestMissing(BundleInfo bundleInfo) {
+		return isDigestNeeded() && bundleInfo != UNREADABLE && bundleInfo.getDigest() == null //
+				&& (bundleInfo.getType() == ContentType.bundle || bundleInfo.getType() == ContentType.jar);
+	}
+
+	protected BundleInfo parseManifest(Resource resource) throws IOException {
+		BundleInfo bundleInfo = new BundleInfo();
+
+		bundleInfo.setName(new File(resource.getName()).getName());
+		if (bundleInfo.getName().endsWith(".jar")) {
+			bundleInfo.setType(ContentType.jar);
+			if (bundleInfo.getName().lastIndexOf('.') != -1) {
+				// remove extension from file
+				bundleInfo.setName(bundleInfo.getName().substring(0, bundleInfo.getName().lastIndexOf('.')));
+			}
+
+			MessageDigest digest = isDigestNeeded() ? createDigest() : null;
+			Manifest manifest = digest != null ? readManifest(resource, MANIFEST_NAME, digest) : readManifest(resource, MANIFEST_NAME);
+			if (manifest != null) {
+				String manifestVersion = manifest.getMainSection().getAttributeValue(BUNDLE_MANIFEST_VERSION);
+				if (!StringUtils.isBlank(manifestVersion) && Integer.parseInt(manifestVersion) >= 2) {
+					bundleInfo = new BundleInfo();
+					bundleInfo.setType(ContentType.bundle);
+					bundleInfo.setVersion(manifest.getMainSection().getAttributeValue(BUNDLE_VERSION));
+					bundleInfo.setContext(manifest.getMainSection().getAttributeValue(BUNDLE_CONTEXT_PATH));
+					String bundleSymbolicName = manifest.getMainSection().getAttributeValue(BUNDLE_SYMBOLIC_NAME);
+					if (bundleSymbolicName != null) {
+						bundleInfo.setName(getSymbolicName(bundleSymbolicName, resource));
+					}
+					// an invalid header leaves out only its own clauses
+					bundleInfo.setExports(parseHeader(manifest, BUNDLE_EXPORT_PACKAGE, resource));
+					bundleInfo.setImports(parseHeader(manifest, BUNDLE_IMPORT_PACKAGE, resource));
+					bundleInfo.setRequiredBundles(parseHeader(manifest, BUNDLE_REQUIRE_BUNDLE, resource));
+				}
+			}
+			if (digest != null) {
+				bundleInfo.setDigest(StringUtils.toHex(digest.digest()));
+			}
+		} else if (bundleInfo.getName().endsWith(".esa")) {
+			bundleInfo.setType(ContentType.file);
+			Feature feature = getFeature(resource);
+			if (feature != null) {
+				bundleInfo = new BundleInfo();
+				bundleInfo.setType(ContentType.feature);
+				bundleInfo.setName(feature.getName());
+				bundleInfo.setVersion(feature.getVersion());
+			}
+		} else {
+			bundleInfo.setType(ContentType.file);
+		}
+		return bundleInfo;
+	}
+
+	/**
+	 * Returns the symbolic name without directives like singleton:=true.
+	 */
+	private String getSymbolicName(String bundleSymbolicName, Resource resource) {
+		try {
+			String[] paths = HeaderTokenizer.getPaths(bundleSymbolicName);
+			return paths.length > 0 ? paths[0] : bundleSymbolicName;
+		} catch (IllegalArgumentException e) {
+			log("Invalid " + BUNDLE_SYMBOLIC_NAME + " header of " + resource.getName() + ": " + e.getMessage(), Project.MSG_WARN);
+			int separator = bundleSymbolicName.indexOf(';');
+			return (separator != -1 ? bundleSymbolicName.substring(0, separator) : bundleSymbolicName).trim();
+		}
+	}
+
+	/**
+	 * Parses a header of the main section of a bundle manifest. An invalid
+	 * header is logged and ignored, the bundle is still declared with its
+	 * symbolic name and version.
+	 *
+	 * @return the header clauses or {@code null} if the header is missing or
+	 *         invalid
+	 */
+	private Clauses parseHeader(Manifest manifest, String header, Resource resource) {
+		String value = manifest.getMainSection().getAttributeValue(header);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Clauses.parse(value);
+		} catch (IllegalArgumentException e) {
+			log("Ignoring the invalid " + header + " header of " + resource.getName() + ": " + e.getMessage(), Project.MSG_WARN);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the subsystem feature packaged in the given resource. The
+	 * subsystem manifest of each archive is read once per build.
+	 *
+	 * @param resource
+	 *            the subsystem archive
+	 * @return the feature or {@code null} if the archive has not a subsystem
+	 *         manifest
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	private Feature getFeature(Resource resource) throws IOException {
+		FeatureGraph graph = FeatureGraph.getInstance(getProject());
+		String key = getResourceKey(resource);
+		Feature feature = graph.get(key);
+		if (feature == null) {
+			Manifest manifest = readManifest(resource, SUBSYTEM_NAME);
+			if (manifest == null) {
+				return null;
+			}
+			try {
+				feature = graph.put(key, parseFeature(manifest));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid subsystem manifest in " + resource.getName() + ": " + e.getMessage(), e);
+			}
+		}
+		return feature;
+	}
+
+	private static Feature parseFeature(Manifest manifest) {
+		String name = manifest.getMainSection().getAttributeValue(SUBSYSTEM_SYMBOLIC_NAME);
+		if (name != null) {
+			String[] paths = HeaderTokenizer.getPaths(name);
+			name = paths.length > 0 ? paths[0] : name;
+		}
+
+		List<String> requires = new ArrayList<String>();
+		String content = manifest.getMainSection().getAttributeValue(SUBSYSTEM_CONTENT);
+		if (content != null) {
+			List<String> paths = new ArrayList<String>(1);
+			boolean isFeature = false;
+			HeaderTokenizer tokenizer = new HeaderTokenizer(content);
+			int token;
+			while ((token = tokenizer.next()) != HeaderTokenizer.END) {
+				if (token == HeaderTokenizer.PATH) {
+					paths.add(tokenizer.getName());
+				} else if (token == HeaderTokenizer.ATTRIBUTE && "type".equals(tokenizer.getName())) {
+					isFeature = SUBSYSTEM_TYPE_FEATURE.equals(tokenizer.getValue());
+				} else if (token == HeaderTokenizer.CLAUSE_END) {
+					if (isFeature) {
+						requires.addAll(paths);
+					}
+					paths.clear();
+					isFeature = false;
+				}
+			}
+		}
+		return new Feature(name, manifest.getMainSection().getAttributeValue(SUBSYSTEM_VERSION), requires);
+	}
+
+	/**
+	 * Adds to the content the features required, directly or not, by the
+	 * nested features, looking them up in the archive content and in the
+	 * feature path.
+	 */
+	private Collection<BundleInfo> addFeatureClosure(Collection<BundleInfo> content) throws BuildException {
+		if (!transitiveFeatures) {
+			return content;
 		}
 
-		/**
-		 * Indicate if the visibility is protected.
-		 *
-		 * @return true if the visibility specified is protected.
-		 */
-		public boolean isProtected() {
-			return "protected".equalsIgnoreCase(getValue());
-		}
+		try {
+			List<Feature> roots = new ArrayList<Feature>();
+			Map<String, Feature> available = new HashMap<String, Feature>();
+			for (Resource resource : featureResources) {
+				Feature feature = getFeature(resource);
+				if (feature != null && feature.getName() != null) {
+					roots.add(feature);
+					available.put(feature.getName(), feature);
+				}
+			}
+			for (ResourceCollection rc : featurePath) {
+				for (@SuppressWarnings("unchecked")
+				Iterator<Resource> it = rc.iterator(); it.hasNext();) {
+					Feature feature = getFeature(it.next());
+					if (feature != null && feature.getName() != null && !available.containsKey(feature.getName())) {
+						available.put(feature.getName(), feature);
+					}
+				}
+			}
 
-		/**
-		 * Indicate if the visibility is private.
-		 *
-		 * @return true if the visibility specified is private.
-		 */
-		public boolean isPrivate() {
-			return "private".equalsIgnoreCase(getValue());
+			Collection<BundleInfo> result = new ArrayList<BundleInfo>(content);
+			for (Feature feature : FeatureGraph.closure(roots, available)) {
+				BundleInfo bundleInfo = new BundleInfo();
+				bundleInfo.setType(ContentType.feature);
+				bundleInfo.setName(feature.getName());
+				bundleInfo.setVersion(feature.getVersion());
+				result.add(bundleInfo);
+			}
+			return result;
+		} catch (IOException e) {
+			throw new BuildException("Could not resolve required features: " + e.getMessage(), e, getLocation());
 		}
+	}
 
+	/**
+	 * Reads the manifest stored in the given entry of an archive resource.
+	 * <p>
+	 * Resources backed by a file are opened with random access, so only the
+	 * central directory and the requested entry are read. Any other resource
+	 * is streamed until the entry is found.
+	 *
+	 * @param resource
+	 *            the archive resource
+	 * @param entryName
+	 *            the manifest entry path inside the archive
+	 * @return the parsed manifest or {@code null} if the archive does not
+	 *         contain the entry
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	protected Manifest readManifest(Resource resource, String entryName) throws IOException {
+		InputStream is = ArchiveUtils.openEntry(resource, entryName);
+		return is != null ? readManifest(is) : null;
 	}
 
-	@Override
-	protected ArchiveState getResourcesToAdd(	ResourceCollection[] rcs,
-												File zipFile,
-												boolean needsUpdate) throws BuildException {
-		for (ResourceCollection rc : rcs) {
-			for (@SuppressWarnings("unchecked")
-			Iterator<Resource> iterator = rc.iterator(); iterator.hasNext();) {
-				Resource resource = iterator.next();
-				try {
-					bundles.add(parseManifest(resource));
-				} catch (IOException e) {
-					log("Could not parse resource " + resource.getName(), Project.MSG_WARN);
+	/**
+	 * Reads the manifest stored in the given entry of an archive resource,
+	 * updating the digest with the whole archive content in the same pass.
+	 *
+	 * @param resource
+	 *            the archive resource
+	 * @param entryName
+	 *            the manifest entry path inside the archive
+	 * @param digest
+	 *            the digest of the archive content
+	 * @return the parsed manifest or {@code null} if the archive does not
+	 *         contain the entry
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	private Manifest readManifest(Resource resource, String entryName, MessageDigest digest) throws IOException {
+		DigestInputStream is = new DigestInputStream(resource.getInputStream(), digest);
+		try {
+			Manifest manifest = null;
+			ZipInputStream zip = new ZipInputStream(is);
+			ZipEntry zipEntry;
+			while ((zipEntry = zip.getNextEntry()) != null) {
+				if (!zipEntry.isDirectory() && entryName.equals(zipEntry.getName())) {
+					manifest = readManifest(new FilterInputStream(zip) {
+						@Override
+						public void close() throws IOException {
+							// the rest of the archive is still to digest
+						}
+					});
+					break;
 				}
 			}
+			byte[] buffer = new byte[8192];
+			while (is.read(buffer) != -1) {
+				// digest the remaining bytes
+			}
+			return manifest;
+		} finally {
+			FileUtils.close(is);
 		}
-		return super.getResourcesToAdd(rcs, zipFile, needsUpdate);
 	}
 
-	protected BundleInfo parseManifest(Resource resource) throws IOException {
-		BundleInfo BundleInfo = new BundleInfo();
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new BuildException(e);
+		}
+	}
 
-		BundleInfo.setName(new File(resource.getName()).getName());
-		if (BundleInfo.getName().endsWith(".jar")) {
-			BundleInfo.setType(ContentType.jar);
-			if (BundleInfo.getName().lastIndexOf('.') != -1) {
-				// remove extension from file
-				BundleInfo.setName(BundleInfo.getName().substring(0, BundleInfo.getName().lastIndexOf('.')));
-			}
+	private Manifest readManifest(InputStream is) throws IOException {
+		Reader reader = new InputStreamReader(is, Charset.defaultCharset());
+		try {
+			return new Manifest(reader);
+		} catch (ManifestException e) {
+			log("Manifest is invalid: " + e.getMessage(), Project.MSG_ERR);
+			throw new BuildException("Invalid Manifest", e, getLocation());
+		} finally {
+			reader.close();
+		}
+	}
 
-			ZipInputStream zip = null;
+	@Override
+	protected void zipFile(InputStream in, ZipOutputStream zOut, String vPath, long lastModified, File fromArchive, int mode) throws IOException {
+		if (rawCopy && fromArchive != null && vPath.equals(getManifestFilePath())) {
+			logWhenWriting(vPath + " will be regenerated, skipping", Project.MSG_VERBOSE);
+			return;
+		}
+		if (fromArchive != null && !skipWriting && rawSources.containsKey(vPath) && !entries.containsKey(vPath)) {
+			// empty placeholder replaced with the compressed source data when the archive is complete
+			boolean oldCompress = isCompress();
+			super.setCompress(false);
 			try {
-				zip = new ZipInputStream(resource.getInputStream());
-				ZipEntry zipEntry;
-				while ((zipEntry = zip.getNextEntry()) != null) {
-					if (!zipEntry.isDirectory() && MANIFEST_NAME.equals(zipEntry.getName())) {
-						Reader reader = new InputStreamReader(zip, Charset.defaultCharset());
-						Manifest manifest;
-						try {
-							manifest = new Manifest(reader);
-						} catch (ManifestException e) {
-							log("Manifest is invalid: " + e.getMessage(), Project.MSG_ERR);
-							throw new BuildException("Invalid Manifest", e, getLocation());
-						} finally {
-							reader.close();
-						}
-						String manifestVersion = manifest.getMainSection().getAttributeValue(BUNDLE_MANIFEST_VERSION);
-						if (!StringUtils.isBlank(manifestVersion) && Integer.parseInt(manifestVersion) >= 2) {
-							BundleInfo bundleInfo = new BundleInfo();
-							bundleInfo.setType(ContentType.bundle);
-							bundleInfo.setName(manifest.getMainSection().getAttributeValue(BUNDLE_SYMBOLIC_NAME));
-							bundleInfo.setVersion(manifest.getMainSection().getAttributeValue(BUNDLE_VERSION));
-							bundleInfo.setContext(manifest.getMainSection().getAttributeValue(BUNDLE_CONTEXT_PATH));
-							Attribute exportPackage = manifest.getMainSection().getAttribute(BUNDLE_EXPORT_PACKAGE);
-							if (exportPackage != null) {
-								bundleInfo.setExportPackage(exportPackage.getValue().split(",\\s+"));
-							}
-							BundleInfo = bundleInfo;
-						}
-						break;
-					}
-				}
+				super.zipFile(new ByteArrayInputStream(new byte[0]), zOut, vPath, lastModified, fromArchive, mode);
 			} finally {
-				if (zip != null) {
-					FileUtils.close(zip);
-				}
+				super.setCompress(oldCompress);
+			}
+			return;
+		}
+		if (deflatePolicy == null || skipWriting || !isCompress()) {
+			super.zipFile(in, zOut, vPath, lastModified, fromArchive, mode);
+			return;
+		}
+
+		CountingInputStream is = new CountingInputStream(in.markSupported() ? in : new BufferedInputStream(in));
+		boolean deflate;
+		switch (deflatePolicy.decide(vPath)) {
+		case STORE:
+			deflate = false;
+			break;
+		case DEFLATE:
+			deflate = true;
+			break;
+		default:
+			byte[] sample = new byte[DeflatePolicy.SAMPLE_SIZE];
+			is.mark(sample.length + 1);
+			int length = 0;
+			int read;
+			while (length < sample.length && (read = is.read(sample, length, sample.length - length)) != -1) {
+				length += read;
 			}
+			is.reset();
+			deflate = deflatePolicy.isCompressible(sample, length);
+			break;
+		}
+
+		if (deflate) {
+			long start = DeflatePolicy.cpuTime();
+			super.zipFile(is, zOut, vPath, lastModified, fromArchive, mode);
+			deflatePolicy.recordDeflated(is.getCount(), DeflatePolicy.cpuTime() - start);
 		} else {
-			BundleInfo.setType(ContentType.file);
+			super.setCompress(false);
+			try {
+				super.zipFile(is, zOut, vPath, lastModified, fromArchive, mode);
+			} finally {
+				super.setCompress(true);
+			}
+			deflatePolicy.recordStored(is.getCount());
+		}
+	}
+
+	/**
+	 * Makes this task use an executor and a bundle index owned by a batch of
+	 * tasks, they are not disposed at the end of the execution.
+	 *
+	 * @param executor
+	 *            the shared executor
+	 * @param bundleIndex
+	 *            the shared bundle informations by resource
+	 * @param parallelism
+	 *            the number of threads of the shared executor
+	 */
+	void share(ExecutorService executor, ConcurrentMap<String, BundleInfo> bundleIndex, int parallelism) {
+		this.sharedExecutor = executor;
+		this.bundleIndex = bundleIndex;
+		this.sharedParallelism = parallelism;
+	}
+
+	/**
+	 * Returns how many units of work this task splits its concurrent work
+	 * into, the threads of the shared executor when it runs in a batch.
+	 */
+	private int getParallelism() {
+		return sharedExecutor != null ? Math.max(threads, sharedParallelism) : threads;
+	}
+
+	/**
+	 * Returns the executor used to run concurrent work of this task, created
+	 * on first use and disposed at the end of the execution.
+	 *
+	 * @return an executor with {@link #getThreads()} threads
+	 */
+	protected synchronized ExecutorService getExecutor() {
+		if (sharedExecutor != null) {
+			return sharedExecutor;
+		}
+		if (executor == null) {
+			executor = new ForkJoinPool(threads);
 		}
-		return BundleInfo;
+		return executor;
 	}
 
 	@Override
 	protected void finalizeZipOutputStream(ZipOutputStream zOut) throws IOException, BuildException {
 		if (!skipWriting) {
-			writeManifest(zOut, createManifest());
+			writeManifest(zOut, getManifestPath(), getManifestFilePath(), createManifest());
+			if (index) {
+				writeManifest(zOut, OSGI_INF, INDEX_NAME, createIndex());
+			}
+			archiveWritten = true;
 		}
 		super.finalizeZipOutputStream(zOut);
 	}
 
-	private void writeManifest(ZipOutputStream zOut, Manifest manifest) throws IOException {
+	/**
+	 * Creates the content index, a manifest with a section for each bundle,
+	 * jar or feature in the archive. Each section is named after the entry
+	 * path and has the symbolic name, version, exported packages, size and
+	 * SHA-256 digest of the entry.
+	 *
+	 * @return the index manifest
+	 * @throws BuildException
+	 *             if the index is not a valid manifest
+	 */
+	protected Manifest createIndex() throws BuildException {
+		Manifest manifest = new Manifest();
+		try {
+			manifest.addConfiguredAttribute(new Attribute(Manifest.ATTRIBUTE_MANIFEST_VERSION, Manifest.DEFAULT_MANIFEST_VERSION));
+			for (Map.Entry<String, Resource> entry : indexEntries.entrySet()) {
+				BundleInfo bundleInfo = getBundleInfo(entry.getValue());
+				if (bundleInfo == null || bundleInfo.getType() == ContentType.file) {
+					continue;
+				}
+				Manifest.Section section = new Manifest.Section();
+				section.setName(entry.getKey());
+				section.addConfiguredAttribute(new Attribute(INDEX_CONTENT_TYPE, bundleInfo.getType().name()));
+				if (bundleInfo.getType() == ContentType.feature) {
+					section.addConfiguredAttribute(new Attribute(SUBSYSTEM_SYMBOLIC_NAME, bundleInfo.getName()));
+					if (bundleInfo.getVersion() != null) {
+						section.addConfiguredAttribute(new Attribute(SUBSYSTEM_VERSION, bundleInfo.getVersion()));
+					}
+				} else if (bundleInfo.getType() == ContentType.bundle) {
+					section.addConfiguredAttribute(new Attribute(BUNDLE_SYMBOLIC_NAME, bundleInfo.getName()));
+					if (bundleInfo.getVersion() != null) {
+						section.addConfiguredAttribute(new Attribute(BUNDLE_VERSION, bundleInfo.getVersion()));
+					}
+					if (bundleInfo.getExports() != null && bundleInfo.getExports().size() > 0) {
+						section.addConfiguredAttribute(new Attribute(BUNDLE_EXPORT_PACKAGE, bundleInfo.getExports().toString()));
+					}
+				}
+				if (entry.getValue().getSize() >= 0) {
+					section.addConfiguredAttribute(new Attribute(INDEX_SIZE, String.valueOf(entry.getValue().getSize())));
+				}
+				if (bundleInfo.getDigest() != null) {
+					section.addConfiguredAttribute(new Attribute(INDEX_DIGEST, bundleInfo.getDigest()));
+				}
+				manifest.addConfiguredSection(section);
+			}
+		} catch (ManifestException e) {
+			log("Index is invalid: " + e.getMessage(), Project.MSG_ERR);
+			throw new BuildException("Invalid index", e, getLocation());
+		}
+		return manifest;
+	}
+
+	private void writeManifest(ZipOutputStream zOut, String dir, String vPath, Manifest manifest) throws IOException {
 		for (@SuppressWarnings("unchecked")
 		Enumeration<String> e = manifest.getWarnings(); e.hasMoreElements();) {
 			log("Manifest warning: " + e.nextElement(), Project.MSG_WARN);
 		}
 
-		zipDir((Resource) null, zOut, getManifestPath(), ZipFileSet.DEFAULT_DIR_MODE, JAR_MARKER);
-		// time to write the manifest
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		OutputStreamWriter osw = new OutputStreamWriter(baos, Manifest.JAR_ENCODING);
-		PrintWriter writer = new PrintWriter(osw);
+		zipDir((Resource) null, zOut, dir, ZipFileSet.DEFAULT_DIR_MODE, JAR_MARKER);
+
+		if (entries.containsKey(vPath)) {
+			if ("preserve".equals(duplicate)) {
+				logWhenWriting(vPath + " already added, skipping", Project.MSG_INFO);
+				return;
+			}
+			if ("fail".equals(duplicate)) {
+				throw new BuildException("Duplicate file " + vPath + " was found and the duplicate attribute is 'fail'.");
+			}
+			logWhenWriting("duplicate file " + vPath + " found, adding.", Project.MSG_VERBOSE);
+		} else {
+			logWhenWriting("adding entry " + vPath, Project.MSG_VERBOSE);
+		}
+		entries.put(vPath, vPath);
+
+		// time to write the manifest, straight into the archive entry
+		org.apache.tools.zip.ZipEntry ze = new org.apache.tools.zip.ZipEntry(vPath);
+		ze.setTime(getManifestTime());
+		ze.setUnixMode(ZipFileSet.DEFAULT_FILE_MODE);
+		if (isCompress()) {
+			ze.setMethod(ZipEntry.DEFLATED);
+		} else {
+			ze.setMethod(ZipEntry.STORED);
+			if (!zOut.isSeekable()) {
+				// size and CRC must be known before the entry data
+				CRC32 crc = new CRC32();
+				CountingOutputStream counter = new CountingOutputStream(new CheckedOutputStream(NullOutputStream.INSTANCE, crc));
+				printManifest(manifest, counter);
+				ze.setSize(counter.getCount());
+				ze.setCrc(crc.getValue());
+			}
+		}
+		zOut.putNextEntry(ze);
+		printManifest(manifest, zOut);
+		zOut.closeEntry();
+	}
+
+	private void printManifest(Manifest manifest, OutputStream out) throws IOException {
+		// never closed, the stream belongs to the caller
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
 		manifest.write(writer);
+		writer.flush();
 		if (writer.checkError()) {
 			throw new IOException("Encountered an error writing the manifest");
 		}
-		writer.close();
+	}
 
-		ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-		try {
-			zipFile(bais, zOut, getManifestFilePath(), System.currentTimeMillis(), null, ZipFileSet.DEFAULT_FILE_MODE);
-		} finally {
-			// not really required
-			FileUtils.close(bais);
+	/**
+	 * Returns the time of the generated manifest entry. It is the
+	 * modificationtime of the task if set, otherwise the time of the most
+	 * recent input resource so that unchanged inputs give the same entry.
+	 *
+	 * @return the manifest entry time in milliseconds
+	 */
+	protected long getManifestTime() {
+		String fixedTime = getModificationtime();
+		if (fixedTime != null) {
+			try {
+				return DateUtils.parseLenientDateTime(fixedTime).getTime() + (roundUp ? ROUNDUP_MILLIS : 0);
+			} catch (ParseException e) {
+				throw new BuildException("Failed to parse date string " + fixedTime + ".");
+			}
+		}
+		return inputsLastModified > 0 ? inputsLastModified : System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the content to declare in the manifest, in canonical order when
+	 * the archive must be reproducible. Each packaged version of a bundle is
+	 * declared once, with the {@code keephighest} duplicate policy only the
+	 * highest version is packaged and declared.
+	 *
+	 * @param content
+	 *            the content found in the archive resources
+	 * @return the content in the order to use in the manifest
+	 */
+	protected Collection<BundleInfo> getContent(Collection<BundleInfo> content) {
+		content = getDeclaredBundles(content, duplicatePolicy != null && duplicatePolicy.isKeepHighest());
+		if (!reproducible) {
+			return content;
+		}
+		List<BundleInfo> sorted = new ArrayList<BundleInfo>(content);
+		Collections.sort(sorted, BundleInfo.CANONICAL_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Removes from the content the bundles not to declare.
+	 *
+	 * @param content
+	 *            the content found in the archive resources
+	 * @param highestOnly
+	 *            if only the highest version of each symbolic name is
+	 *            declared, otherwise each version is declared once
+	 * @return the content to declare
+	 */
+	private Collection<BundleInfo> getDeclaredBundles(Collection<BundleInfo> content, boolean highestOnly) {
+		Map<String, BundleInfo> declared = new HashMap<String, BundleInfo>();
+		boolean duplicates = false;
+		for (BundleInfo bundleInfo : content) {
+			if (bundleInfo.getType() != ContentType.bundle) {
+				continue;
+			}
+			String key = getDeclarationKey(bundleInfo, highestOnly);
+			BundleInfo previous = declared.put(key, bundleInfo);
+			if (previous == null) {
+				continue;
+			}
+			duplicates = true;
+			if (!highestOnly) {
+				declared.put(key, previous);
+				continue;
+			}
+			BundleInfo ignored = bundleInfo;
+			if (previous.getParsedVersion().compareTo(bundleInfo.getParsedVersion()) >= 0) {
+				declared.put(key, previous);
+			} else {
+				ignored = previous;
+			}
+			log(MessageFormat.format("Bundle {0} is packaged more than once, version {1} is not declared", //
+					ignored.getName(), ignored.getVersion()), Project.MSG_WARN);
+		}
+		if (!duplicates) {
+			return content;
+		}
+
+		List<BundleInfo> result = new ArrayList<BundleInfo>(content.size());
+		for (BundleInfo bundleInfo : content) {
+			if (bundleInfo.getType() != ContentType.bundle || declared.get(getDeclarationKey(bundleInfo, highestOnly)) == bundleInfo) {
+				result.add(bundleInfo);
+			}
 		}
+		return result;
+	}
+
+	private static String getDeclarationKey(BundleInfo bundleInfo, boolean highestOnly) {
+		return highestOnly ? bundleInfo.getName() : bundleInfo.getName() + ';' + bundleInfo.getParsedVersion();
 	}
 
 	protected String getManifestPath() {
@@ -287,23 +1637,18 @@ public class ESA extends Zip {
 				symbolicName.append(";singleton:=").append(singleton);
 			}
 			manifest.addConfiguredAttribute(new Attribute(SUBSYSTEM_SYMBOLIC_NAME, symbolicName.toString()));
-			manifest.addConfiguredAttribute(new Attribute(SUBSYSTEM_TYPE, "osgi.subsystem.feature"));
+			manifest.addConfiguredAttribute(new Attribute(SUBSYSTEM_TYPE, SUBSYSTEM_TYPE_FEATURE));
 
 			if (!bundles.isEmpty()) {
-				Collection<String> exportPackages = new ArrayList<String>();
+				Collection<BundleInfo> bundles = getContent(addFeatureClosure(this.bundles));
+				ApiPackages apiPackages = new ApiPackages();
 				for (BundleInfo BundleInfo : bundles) {
-					if (BundleInfo.getType() == ContentType.bundle && BundleInfo.getExportPackage() != null) {
-						BundleInfo bundleInfo = BundleInfo;
-						for (int i = 0; i < bundleInfo.getExportPackage().length; i++) {
-							if (bundleInfo.getExportPackage()[i].startsWith("javax.")) {
-								bundleInfo.getExportPackage()[i] += ";type=\"spec\"";
-							}
-						}
-						exportPackages.addAll(Arrays.asList(bundleInfo.getExportPackage()));
+					if (BundleInfo.getType() == ContentType.bundle && BundleInfo.getExports() != null) {
+						apiPackages.addAll(BundleInfo.getExports());
 					}
 				}
-				if (!exportPackages.isEmpty()) {
-					manifest.addConfiguredAttribute(new Attribute(IBM_API_PACKAGE, StringUtils.join(exportPackages, ", ")));
+				if (!apiPackages.isEmpty()) {
+					manifest.addConfiguredAttribute(new Attribute(IBM_API_PACKAGE, apiPackages.getValue()));
 				}
 
 				Collection<String> content = new ArrayList<String>(bundles.size());
@@ -313,6 +1658,13 @@ public class ESA extends Zip {
 						BundleInfo bundleInfo = BundleInfo;
 						content.add(MessageFormat.format("{0};version=\"{1}\"", bundleInfo.getName(), bundleInfo.getVersion()));
 						break;
+					case feature:
+						if (BundleInfo.getVersion() != null) {
+							content.add(MessageFormat.format("{0};version=\"{1}\";type=\"{2}\"", BundleInfo.getName(), BundleInfo.getVersion(), SUBSYSTEM_TYPE_FEATURE));
+						} else {
+							content.add(MessageFormat.format("{0};type=\"{1}\"", BundleInfo.getName(), SUBSYSTEM_TYPE_FEATURE));
+						}
+						break;
 					default:
 						content.add(MessageFormat.format("{0};type=\"{1}\"", BundleInfo.getName(), BundleInfo.getType().name()));
 						break;
@@ -342,7 +1694,67 @@ public class ESA extends Zip {
 		if (version == null) {
 			throw new BuildException("You must specify a version");
 		}
-		super.execute();
+
+		if (cacheDir != null) {
+			cache = new BundleInfoCache(cacheDir, cacheChecksum);
+			try {
+				cache.load();
+			} catch (IOException e) {
+				log("Could not read bundle cache in " + cacheDir + ": " + e.getMessage(), Project.MSG_WARN);
+			}
+		}
+		// entries are written stored and deflated concurrently afterwards
+		parallelDeflate = parallelCompression && compress && !isInUpdateMode();
+		rewritable = true;
+		if (compressionPolicy.isAuto() && compress) {
+			deflatePolicy = new DeflatePolicy(getLevel());
+		}
+		try {
+			fingerprint = null;
+			archiveWritten = false;
+			bundles.clear();
+			if (parallelDeflate) {
+				super.setCompress(false);
+			}
+			super.execute();
+			if (archiveWritten && rewritable && (parallelDeflate || reproducible || !rawSources.isEmpty())) {
+				rewrite(parallelDeflate);
+			}
+			if (deflatePolicy != null && archiveWritten) {
+				log(MessageFormat.format("Stored {0} entries ({1} bytes) without deflating them, saving about {2} ms of CPU time", //
+						deflatePolicy.getStoredEntries(), deflatePolicy.getStoredBytes(), deflatePolicy.getSavedMillis()));
+			}
+			if (fingerprint != null) {
+				writeFingerprint();
+			}
+			if (contentHashProperty != null && getDestFile().isFile()) {
+				getProject().setNewProperty(contentHashProperty, computeContentHash());
+			}
+		} finally {
+			if (parallelDeflate) {
+				super.setCompress(compress);
+			}
+			deflatePolicy = null;
+			rawSources.clear();
+			indexEntries.clear();
+			if (sharedExecutor == null) {
+				bundleIndex.clear();
+			}
+			synchronized (this) {
+				if (executor != null) {
+					executor.shutdown();
+					executor = null;
+				}
+			}
+			if (cache != null) {
+				try {
+					cache.save();
+				} catch (IOException e) {
+					log("Could not write bundle cache in " + cacheDir + ": " + e.getMessage(), Project.MSG_WARN);
+				}
+				cache = null;
+			}
+		}
 	}
 
 	public void setName(String name) {
@@ -354,7 +1766,11 @@ public class ESA extends Zip {
 	}
 
 	public void setVersion(String version) {
-		// check version format
+		try {
+			Version.parseVersion(version);
+		} catch (IllegalArgumentException e) {
+			throw new BuildException("Invalid version " + version + ", expected major[.minor[.micro[.qualifier]]]", e);
+		}
 		this.version = version;
 	}
 
@@ -385,4 +1801,241 @@ public class ESA extends Zip {
 	public void setLicense(String license) {
 		this.license = license;
 	}
+
+	/**
+	 * Sets the number of threads used to read the bundle manifests, default
+	 * is one.
+	 *
+	 * @param threads
+	 *            the maximum number of concurrent manifest readers
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new BuildException("threads must be a positive number");
+		}
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the directory where the informations extracted from the bundles
+	 * are cached between builds.
+	 *
+	 * @param cacheDir
+	 *            the cache directory
+	 */
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * Keeps the cached informations of a bundle whose last modified time
+	 * changed but whose content checksum did not, as after a fresh checkout.
+	 * The checksum is computed only when the last modified time of the bundle
+	 * differs from the cached one.
+	 *
+	 * @param cacheChecksum
+	 *            if a checksum of each bundle is stored
+	 */
+	public void setCacheChecksum(boolean cacheChecksum) {
+		this.cacheChecksum = cacheChecksum;
+	}
+
+	/**
+	 * Enables the check of the task attributes and of the content resources
+	 * against a fingerprint stored next to the archive. When nothing changed
+	 * since the last build the archive is not rebuilt, when anything changed
+	 * it is always rebuilt even if all resources are older than the archive.
+	 *
+	 * @param incremental
+	 *            if the fingerprint must be used in the up to date check
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	@Override
+	public void setRoundUp(boolean roundUp) {
+		super.setRoundUp(roundUp);
+		this.roundUp = roundUp;
+	}
+
+	@Override
+	public void setCompress(boolean compress) {
+		super.setCompress(compress);
+		this.compress = compress;
+	}
+
+	/**
+	 * Sets how entries are compressed. With {@code auto} nested archives and
+	 * other already compressed entries are stored, text and class entries
+	 * are deflated and any other entry is deflated only if a sample of its
+	 * content shrinks.
+	 *
+	 * @param compressionPolicy
+	 *            the compression policy, default is {@code always}
+	 */
+	public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+	}
+
+	/**
+	 * Sets what to do when the same bundle is packaged more than once, with
+	 * identical content under different file names or with the same symbolic
+	 * name. Files are compared by a SHA-256 digest of their content, computed
+	 * while their manifest is read. With {@code fail} the build fails, with
+	 * {@code warn} the duplicates are logged, with {@code dropidentical}
+	 * identical files are packaged once and with {@code keephighest} only
+	 * the highest version of each symbolic name is packaged too.
+	 *
+	 * @param duplicatePolicy
+	 *            the duplicate policy, by default duplicates are not looked
+	 *            for
+	 */
+	public void setDuplicateBundles(DuplicatePolicy duplicatePolicy) {
+		this.duplicatePolicy = duplicatePolicy;
+	}
+
+	/**
+	 * Writes also the {@code OSGI-INF/INDEX.MF} entry, a manifest with a
+	 * section for each bundle, jar or feature in the archive. Sections are
+	 * named after the entry path and list the symbolic name, version,
+	 * exported packages, size and SHA-256 digest of the entry, so the
+	 * content can be known without opening the nested archives.
+	 *
+	 * @param index
+	 *            if the index entry must be written
+	 */
+	public void setIndex(boolean index) {
+		this.index = index;
+	}
+
+	/**
+	 * Declares in the Subsystem-Content also the features required, directly
+	 * or not, by the nested subsystem archives. Required features are looked
+	 * up among the nested archives and the feature path.
+	 *
+	 * @param transitiveFeatures
+	 *            if the required features must be declared
+	 */
+	public void setTransitiveFeatures(boolean transitiveFeatures) {
+		this.transitiveFeatures = transitiveFeatures;
+	}
+
+	/**
+	 * Packages also the bundles of the pool that provide the Import-Package
+	 * and Require-Bundle requirements with {@code resolution:=optional},
+	 * default is false: optional requirements are satisfied only by the
+	 * content.
+	 *
+	 * @param resolveOptional
+	 *            if optional requirements select bundles of the pool
+	 */
+	public void setResolveOptional(boolean resolveOptional) {
+		this.resolveOptional = resolveOptional;
+	}
+
+	/**
+	 * Adds a set of subsystem archives used to resolve the features required
+	 * by the nested ones, they are not packaged.
+	 *
+	 * @param fs
+	 *            the subsystem archives
+	 */
+	public void addFeaturePath(FileSet fs) {
+		addFeaturePath((ResourceCollection) fs);
+	}
+
+	/**
+	 * Adds a collection of subsystem archives used to resolve the features
+	 * required by the nested ones, they are not packaged.
+	 *
+	 * @param rc
+	 *            the subsystem archives
+	 */
+	public void addFeaturePath(ResourceCollection rc) {
+		featurePath.add(rc);
+	}
+
+	/**
+	 * Adds a set of candidate bundles used to resolve the Import-Package and
+	 * Require-Bundle headers of the content. The bundles that provide a
+	 * requirement, directly or not, are packaged too.
+	 *
+	 * @param fs
+	 *            the candidate bundles
+	 */
+	public void addBundlePool(FileSet fs) {
+		addBundlePool((ResourceCollection) fs);
+	}
+
+	/**
+	 * Adds a collection of candidate bundles used to resolve the
+	 * Import-Package and Require-Bundle headers of the content. The bundles
+	 * that provide a requirement, directly or not, are packaged too.
+	 *
+	 * @param rc
+	 *            the candidate bundles
+	 */
+	public void addBundlePool(ResourceCollection rc) {
+		bundlePool.add(rc);
+		if (resolvedBundles == null) {
+			resolvedBundles = new ResolvedBundles();
+			add(resolvedBundles);
+		}
+	}
+
+	/**
+	 * Makes the archive reproducible, the same inputs give an identical
+	 * archive. Entries are sorted by name, their time is the modificationtime
+	 * attribute or 1980-01-01 if not set, permissions and extra fields get
+	 * fixed values and the manifest lists the content in canonical order.
+	 *
+	 * @param reproducible
+	 *            if the archive must be reproducible
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+
+	/**
+	 * Sets the name of the property that receives the SHA-256 hash of the
+	 * archive, in hexadecimal format.
+	 *
+	 * @param contentHashProperty
+	 *            the property name
+	 */
+	public void setContentHashProperty(String contentHashProperty) {
+		this.contentHashProperty = contentHashProperty;
+	}
+
+	/**
+	 * Copies the entries taken from other archives, through zipfilesets with
+	 * the src attribute, without inflating and deflating them again. The
+	 * compressed data and CRC are moved straight into the new archive, only
+	 * the manifest is regenerated.
+	 *
+	 * @param rawCopy
+	 *            if archive entries must be copied as they are
+	 */
+	public void setRawCopy(boolean rawCopy) {
+		this.rawCopy = rawCopy;
+	}
+
+	/**
+	 * Deflates the archive entries concurrently using {@link #getThreads()}
+	 * threads. The archive is first assembled with stored entries that are
+	 * then compressed and written in the original order. Ignored in update
+	 * mode and when the stored archive would need the Zip64 extensions, over
+	 * 65534 entries or 4GB, then entries are compressed serially.
+	 *
+	 * @param parallelCompression
+	 *            if entries must be compressed concurrently
+	 */
+	public void setParallelCompression(boolean parallelCompression) {
+		this.parallelCompression = parallelCompression;
+	}
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Packages many features and applications concurrently.
+ * <p>
+ * Nested {@code <esa>} and {@code <eba>} elements accept the same attributes
+ * and elements of the standalone tasks and produce the same archives. All of
+ * them run on one pool of threads, that limits the parallelism of the whole
+ * batch, and share the analysis of their resources, so a bundle used by many
+ * features is read only once.
+ * <p>
+ * The work a feature splits (manifest reads, compression) is handed to an
+ * idle thread of the pool, when all threads are busy the feature runs it
+ * itself. No thread ever waits for work queued behind it, so the pool never
+ * needs more threads than configured.
+ */
+public class ESABatch extends Task {
+	private final List<ESA> features = new ArrayList<ESA>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Adds a feature to package.
+	 *
+	 * @return the feature task to configure
+	 */
+	public ESA createEsa() {
+		return add(new ESA(), "esa");
+	}
+
+	/**
+	 * Adds an application to package.
+	 *
+	 * @return the application task to configure
+	 */
+	public EBA createEba() {
+		return add(new EBA(), "eba");
+	}
+
+	private <T extends ESA> T add(T feature, String taskName) {
+		feature.bindToOwner(this);
+		feature.setTaskName(taskName);
+		features.add(feature);
+		return feature;
+	}
+
+	/**
+	 * Sets the maximum number of threads used by the whole batch, default is
+	 * the number of available processors.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new BuildException("threads must be greater than zero");
+		}
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (features.isEmpty()) {
+			log("No nested esa or eba to package", Project.MSG_VERBOSE);
+			return;
+		}
+
+		// without a queue the work submitted when all threads are busy is run
+		// by the submitter
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+		ConcurrentMap<String, BundleInfo> bundleIndex = new ConcurrentHashMap<String, BundleInfo>();
+		final Queue<ESA> pending = new ConcurrentLinkedQueue<ESA>(features);
+		final Map<ESA, BuildException> failures = new ConcurrentHashMap<ESA, BuildException>();
+		try {
+			// each runner takes the next feature when the previous one ends
+			int runners = Math.min(threads, features.size());
+			List<Future<Void>> results = new ArrayList<Future<Void>>(runners);
+			for (ESA feature : features) {
+				feature.share(pool, bundleIndex, threads);
+			}
+			for (int i = 0; i < runners; i++) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						ESA feature;
+						while ((feature = pending.poll()) != null) {
+							try {
+								feature.perform();
+							} catch (BuildException e) {
+								failures.put(feature, e);
+							} catch (RuntimeException e) {
+								failures.put(feature, new BuildException(e, feature.getLocation()));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					throw new BuildException(e.getCause(), getLocation());
+				}
+			}
+
+			// all features are packaged, the first failure wins
+			for (ESA feature : features) {
+				BuildException failure = failures.get(feature);
+				if (failure != null) {
+					throw failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while packaging features", e, getLocation());
+		} finally {
+			pool.shutdown();
+			for (ESA feature : features) {
+				feature.share(null, new ConcurrentHashMap<String, BundleInfo>(), 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * The subsystem features read during a build, shared by all tasks of a
+ * project so that each subsystem manifest is parsed only once.
+ */
+class FeatureGraph {
+	/** The project reference that holds the graph. */
+	static final String REFERENCE_ID = "com.github.nfalco79.tools.ant.featureGraph";
+
+	/**
+	 * A subsystem feature and the features it requires through its
+	 * Subsystem-Content header.
+	 */
+	static final class Feature {
+		private final String name;
+		private final String version;
+		private final List<String> requires;
+
+		Feature(String name, String version, List<String> requires) {
+			this.name = name;
+			this.version = version;
+			this.requires = requires;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		public List<String> getRequires() {
+			return requires;
+		}
+	}
+
+	private final ConcurrentMap<String, Feature> features = new ConcurrentHashMap<String, Feature>();
+
+	/**
+	 * Returns the graph of the given project, created on first use.
+	 *
+	 * @param project
+	 *            the current project
+	 * @return the project feature graph
+	 */
+	static FeatureGraph getInstance(Project project) {
+		synchronized (project) {
+			Object graph = project.getReference(REFERENCE_ID);
+			if (!(graph instanceof FeatureGraph)) {
+				graph = new FeatureGraph();
+				project.addReference(REFERENCE_ID, graph);
+			}
+			return (FeatureGraph) graph;
+		}
+	}
+
+	/**
+	 * Returns the feature read from the archive with the given key.
+	 *
+	 * @param key
+	 *            identifies the archive and its content
+	 * @return the feature or {@code null} if not read yet
+	 */
+	Feature get(String key) {
+		return features.get(key);
+	}
+
+	/**
+	 * Records the feature read from the archive with the given key.
+	 *
+	 * @param key
+	 *            identifies the archive and its content
+	 * @param feature
+	 *            the feature read
+	 * @return the recorded feature, that is a previous one if the archive
+	 *         was read concurrently
+	 */
+	Feature put(String key, Feature feature) {
+		Feature previous = features.putIfAbsent(key, feature);
+		return previous != null ? previous : feature;
+	}
+
+	/**
+	 * Computes the features required, directly or not, by the given ones.
+	 * Each feature is visited once, also when required by many others.
+	 *
+	 * @param roots
+	 *            the features to start from
+	 * @param available
+	 *            the features that can be resolved, by name
+	 * @return the required features not in the roots, in discovery order
+	 */
+	static Collection<Feature> closure(Collection<Feature> roots, Map<String, Feature> available) {
+		Set<String> visited = new LinkedHashSet<String>();
+		Deque<Feature> queue = new ArrayDeque<Feature>();
+		for (Feature root : roots) {
+			if (visited.add(root.getName())) {
+				queue.add(root);
+			}
+		}
+
+		List<Feature> result = new ArrayList<Feature>();
+		while (!queue.isEmpty()) {
+			for (String name : queue.poll().getRequires()) {
+				if (!visited.add(name)) {
+					continue;
+				}
+				Feature feature = available.get(name);
+				if (feature != null) {
+					result.add(feature);
+					queue.add(feature);
+				}
+			}
+		}
+		return result;
+	}
+}
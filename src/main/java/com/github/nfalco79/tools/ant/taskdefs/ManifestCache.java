@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+
+/**
+ * The manifests parsed during a build, shared by all tasks of a project so
+ * that reading the same manifest again is a map lookup.
+ * <p>
+ * Manifests are identified by the resource, the entry inside the archive,
+ * size and last modified time. When a limit is set the least recently used
+ * manifests are evicted once the size of the cached manifests exceeds it.
+ * Cached manifests must not be modified.
+ */
+class ManifestCache {
+	/** The project reference that holds the cache. */
+	static final String REFERENCE_ID = "com.github.nfalco79.tools.ant.manifestCache";
+
+	private static final class Entry {
+		private final Manifest manifest;
+		private final long size;
+
+		Entry(Manifest manifest, long size) {
+			this.manifest = manifest;
+			this.size = size;
+		}
+	}
+
+	private final Map<String, Entry> manifests = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private long limit;
+	private long size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Returns the cache of the given project, created on first use.
+	 *
+	 * @param project
+	 *            the current project
+	 * @return the project manifest cache
+	 */
+	static ManifestCache getInstance(Project project) {
+		synchronized (project) {
+			Object cache = project.getReference(REFERENCE_ID);
+			if (!(cache instanceof ManifestCache)) {
+				cache = new ManifestCache();
+				project.addReference(REFERENCE_ID, cache);
+			}
+			return (ManifestCache) cache;
+		}
+	}
+
+	/**
+	 * Returns the key of a manifest, that changes with the resource content.
+	 *
+	 * @param resource
+	 *            the manifest or archive resource
+	 * @param entryName
+	 *            the manifest entry inside the archive, {@code null} if the
+	 *            resource is the manifest
+	 * @return the manifest key
+	 */
+	static String getKey(Resource resource, String entryName) {
+		FileProvider fileProvider = resource.as(FileProvider.class);
+		String identity = fileProvider != null ? fileProvider.getFile().getAbsolutePath() : resource.toLongString();
+		return identity + (entryName != null ? '!' + entryName : "") + '|' + resource.getSize() + '|' + resource.getLastModified();
+	}
+
+	/**
+	 * Sets the maximum size of the cached manifests, 0 means no limit.
+	 *
+	 * @param limit
+	 *            the limit in bytes of manifest text
+	 */
+	public synchronized void setLimit(long limit) {
+		this.limit = limit;
+		evict();
+	}
+
+	/**
+	 * Returns the manifest with the given key, counting a hit or a miss.
+	 *
+	 * @param key
+	 *            the manifest key
+	 * @return the cached manifest or {@code null}
+	 */
+	public synchronized Manifest get(String key) {
+		Entry entry = manifests.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.manifest;
+	}
+
+	/**
+	 * Returns the whole manifest with the given key or else the partial one,
+	 * read for some attributes only, counting a single hit or miss.
+	 *
+	 * @param key
+	 *            the manifest key
+	 * @param partialKey
+	 *            the key of the partial manifest
+	 * @return the cached manifest or {@code null}
+	 */
+	public synchronized Manifest get(String key, String partialKey) {
+		Entry entry = manifests.get(key);
+		if (entry == null) {
+			entry = manifests.get(partialKey);
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.manifest;
+	}
+
+	/**
+	 * Caches a manifest.
+	 *
+	 * @param key
+	 *            the manifest key
+	 * @param manifest
+	 *            the parsed manifest
+	 * @param size
+	 *            the size of the manifest text
+	 */
+	public synchronized void put(String key, Manifest manifest, long size) {
+		Entry previous = manifests.put(key, new Entry(manifest, size));
+		if (previous != null) {
+			this.size -= previous.size;
+		}
+		this.size += size;
+		evict();
+	}
+
+	private void evict() {
+		if (limit <= 0) {
+			return;
+		}
+		Iterator<Entry> it = manifests.values().iterator();
+		while (size > limit && it.hasNext()) {
+			size -= it.next().size;
+			it.remove();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return manifests.size();
+	}
+}
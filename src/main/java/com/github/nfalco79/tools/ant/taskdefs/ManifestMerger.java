@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static com.github.nfalco79.tools.ant.taskdefs.ApplicationConstants.*;
+import static com.github.nfalco79.tools.ant.taskdefs.BundleConstants.*;
+import static com.github.nfalco79.tools.ant.taskdefs.IBMSubsystemConstants.*;
+import static com.github.nfalco79.tools.ant.taskdefs.SubsystemConstants.*;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.taskdefs.ManifestException;
+import org.apache.tools.ant.types.Resource;
+
+import com.github.nfalco79.tools.ant.taskdefs.ManifestReader.MergePolicy;
+import com.github.nfalco79.tools.ant.taskdefs.util.StringUtils;
+
+/**
+ * Merges many manifests into one table of attributes, keyed by section and
+ * attribute name in the order they are first read.
+ * <p>
+ * Each attribute is added in constant time and remembers the resources that
+ * contributed its value. Concatenated values are collected and joined once
+ * when the manifest is built. Conflicting values are resolved by the
+ * {@link MergePolicy}, the same value read again is never a conflict. Only
+ * the values of the list headers, whose clauses are separated by comma, are
+ * concatenated, different values of any other attribute fail the build also
+ * when the policy is concat.
+ */
+class ManifestMerger {
+	private static final Set<String> LIST_HEADERS = new HashSet<String>();
+	static {
+		for (String header : new String[] { BUNDLE_EXPORT_PACKAGE, BUNDLE_IMPORT_PACKAGE, "DynamicImport-Package", //
+				BUNDLE_REQUIRE_BUNDLE, "Require-Capability", "Provide-Capability", "Bundle-ClassPath", //
+				"Export-Service", "Import-Service", IBM_API_PACKAGE, "IBM-SPI-Package", SUBSYSTEM_CONTENT, //
+				APPLICATION_CONTENT, APPLICATION_IMPORT_SERVIVE }) {
+			LIST_HEADERS.add(header.toLowerCase(Locale.ENGLISH));
+		}
+	}
+
+	private static final class Value {
+		private final String section;
+		private final String name;
+		private final List<String> values = new ArrayList<String>(1);
+		/** The distinct values, so a value read again is found at once. */
+		private final Set<String> distinct = new HashSet<String>(2);
+		private final List<Resource> contributors = new ArrayList<Resource>(1);
+
+		Value(String section, String name, String value, Resource contributor) {
+			this.section = section;
+			this.name = name;
+			add(value, contributor);
+		}
+
+		void add(String value, Resource contributor) {
+			values.add(value);
+			distinct.add(value);
+			contributors.add(contributor);
+		}
+
+		void replace(String value, Resource contributor) {
+			values.clear();
+			distinct.clear();
+			contributors.clear();
+			add(value, contributor);
+		}
+
+		String getValue() {
+			return values.size() == 1 ? values.get(0) : StringUtils.join(values, ",");
+		}
+	}
+
+	private final MergePolicy policy;
+	private final Map<String, Value> attributes = new LinkedHashMap<String, Value>();
+
+	/**
+	 * Creates a merger.
+	 *
+	 * @param policy
+	 *            how conflicting values are merged
+	 */
+	ManifestMerger(MergePolicy policy) {
+		this.policy = policy;
+	}
+
+	private static String getKey(String section, String attributeName) {
+		String key = attributeName.toLowerCase(Locale.ENGLISH);
+		// attribute names can not contain a line feed
+		return section == null ? key : section + '\n' + key;
+	}
+
+	/**
+	 * Adds all attributes of a manifest.
+	 *
+	 * @param manifest
+	 *            the manifest to merge
+	 * @param resource
+	 *            the resource the manifest was read from
+	 * @throws BuildException
+	 *             if the policy is fail, or concat for a header that is not a
+	 *             list, and a value differs from the merged one
+	 */
+	void add(Manifest manifest, Resource resource) throws BuildException {
+		add(manifest.getMainSection(), null, resource);
+		@SuppressWarnings("unchecked")
+		Enumeration<String> sectionNames = manifest.getSectionNames();
+		while (sectionNames.hasMoreElements()) {
+			String sectionName = sectionNames.nextElement();
+			add(manifest.getSection(sectionName), sectionName, resource);
+		}
+	}
+
+	private void add(Manifest.Section section, String sectionName, Resource resource) {
+		@SuppressWarnings("unchecked")
+		Enumeration<String> attributeKeys = section.getAttributeKeys();
+		while (attributeKeys.hasMoreElements()) {
+			Manifest.Attribute attribute = section.getAttribute(attributeKeys.nextElement());
+			String key = getKey(sectionName, attribute.getName());
+			Value merged = attributes.get(key);
+			if (merged == null) {
+				attributes.put(key, new Value(sectionName, attribute.getName(), attribute.getValue(), resource));
+			} else if (merged.distinct.contains(attribute.getValue())) {
+				continue;
+			} else if (policy.isFail() || policy.isConcat() && !LIST_HEADERS.contains(attribute.getKey())) {
+				throw new BuildException("Attribute " + getName(sectionName, attribute.getName()) + " of " + resource //
+						+ " conflicts with " + merged.contributors.get(merged.contributors.size() - 1));
+			} else if (policy.isConcat()) {
+				merged.add(attribute.getValue(), resource);
+			} else if (!policy.isFirstWins()) {
+				merged.replace(attribute.getValue(), resource);
+			}
+		}
+	}
+
+	private static String getName(String section, String attributeName) {
+		return section == null ? attributeName : section + '.' + attributeName;
+	}
+
+	/**
+	 * Returns the resources that contributed the merged value of an
+	 * attribute.
+	 *
+	 * @param section
+	 *            the section name, {@code null} for the main section
+	 * @param attributeName
+	 *            the attribute name
+	 * @return the contributor names separated by comma, {@code null} if the
+	 *         attribute was not merged
+	 */
+	String getContributors(String section, String attributeName) {
+		Value merged = attributes.get(getKey(section, attributeName));
+		if (merged == null) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>(merged.contributors.size());
+		for (Resource contributor : merged.contributors) {
+			names.add(contributor.toString());
+		}
+		return StringUtils.join(names, ",");
+	}
+
+	/**
+	 * Builds the merged manifest.
+	 *
+	 * @return a new manifest with the merged attributes
+	 * @throws BuildException
+	 *             if an attribute is not valid
+	 */
+	Manifest toManifest() throws BuildException {
+		Manifest manifest = new Manifest();
+		try {
+			for (Value merged : attributes.values()) {
+				Manifest.Attribute attribute = new Manifest.Attribute(merged.name, merged.getValue());
+				if (merged.section == null) {
+					manifest.addConfiguredAttribute(attribute);
+				} else {
+					Manifest.Section section = manifest.getSection(merged.section);
+					if (section == null) {
+						section = new Manifest.Section();
+						section.setName(merged.section);
+						manifest.addConfiguredSection(section);
+					}
+					section.addAttributeAndCheck(attribute);
+				}
+			}
+		} catch (ManifestException e) {
+			throw new BuildException(e);
+		}
+		return manifest;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+import org.apache.tools.ant.taskdefs.Manifest;
+
+/**
+ * Resolves the manifest attributes as Ant properties only when they are
+ * referenced.
+ * <p>
+ * A property {@code <prefix><attribute name>} is resolved against the main
+ * section and {@code <prefix><section name>.<attribute name>} against the
+ * named section, the same names bound by {@link ManifestReader} when no
+ * attribute is configured. On first reference the value is set as a new
+ * property, so properties already defined win as usual and further lookups
+ * do not touch the manifest again.
+ * <p>
+ * A single evaluator is registered for each project, all lazy reads add
+ * their manifests to it. The evaluator is consulted for every property of
+ * the build, so the names of the properties of each manifest are indexed
+ * when it is added and any lookup costs a single hash lookup, however many
+ * manifests are read. As for bound properties the first read wins.
+ */
+class ManifestPropertyEvaluator implements PropertyHelper.PropertyEvaluator {
+	static final String REFERENCE_ID = "com.github.nfalco79.tools.ant.manifestEvaluator";
+
+	/** The properties not referenced yet, by name. */
+	private final ConcurrentMap<String, String> pending = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Returns the evaluator of the given project, created and added to the
+	 * project property helper on first use.
+	 *
+	 * @param project
+	 *            the current project
+	 * @return the project evaluator
+	 */
+	static ManifestPropertyEvaluator getInstance(Project project) {
+		synchronized (project) {
+			Object evaluator = project.getReference(REFERENCE_ID);
+			if (!(evaluator instanceof ManifestPropertyEvaluator)) {
+				evaluator = new ManifestPropertyEvaluator();
+				project.addReference(REFERENCE_ID, evaluator);
+				PropertyHelper.getPropertyHelper(project).add((ManifestPropertyEvaluator) evaluator);
+			}
+			return (ManifestPropertyEvaluator) evaluator;
+		}
+	}
+
+	/**
+	 * Adds a manifest whose attributes are resolved for properties starting
+	 * with the given prefix.
+	 *
+	 * @param propertyPrefix
+	 *            the prefix of the properties
+	 * @param manifest
+	 *            the manifest to resolve, must not be modified afterwards
+	 */
+	void addManifest(String propertyPrefix, Manifest manifest) {
+		addSection(propertyPrefix, manifest.getMainSection());
+		@SuppressWarnings("unchecked")
+		Enumeration<String> sectionNames = manifest.getSectionNames();
+		while (sectionNames.hasMoreElements()) {
+			String sectionName = sectionNames.nextElement();
+			addSection(propertyPrefix + sectionName + '.', manifest.getSection(sectionName));
+		}
+	}
+
+	private void addSection(String propertyPrefix, Manifest.Section section) {
+		@SuppressWarnings("unchecked")
+		Enumeration<String> keys = section.getAttributeKeys();
+		while (keys.hasMoreElements()) {
+			Manifest.Attribute attribute = section.getAttribute(keys.nextElement());
+			// properties are case sensitive, they take the attribute name
+			pending.putIfAbsent(propertyPrefix + attribute.getName(), attribute.getValue());
+		}
+	}
+
+	@Override
+	public Object evaluate(String property, PropertyHelper propertyHelper) {
+		String value = pending.remove(property);
+		if (value != null) {
+			// no-op if the property is already defined
+			propertyHelper.setNewProperty(property, value);
+		}
+		// let the helper return the defined value
+		return null;
+	}
+}
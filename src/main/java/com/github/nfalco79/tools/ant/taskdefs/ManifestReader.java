@@ -19,10 +19,23 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -30,12 +43,18 @@ import org.apache.tools.ant.PropertyHelper;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.taskdefs.Manifest;
 import org.apache.tools.ant.taskdefs.ManifestException;
+import org.apache.tools.ant.types.EnumeratedAttribute;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
 import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.types.resources.Resources;
 import org.apache.tools.ant.util.FileUtils;
 
+import com.github.nfalco79.tools.ant.taskdefs.util.ArchiveUtils;
+import com.github.nfalco79.tools.ant.taskdefs.util.CountingInputStream;
+import com.github.nfalco79.tools.ant.taskdefs.util.HeaderTokenizer;
+import com.github.nfalco79.tools.ant.taskdefs.util.StringUtils;
+
 /**
  * Parse the data of a jar manifest.
  *
@@ -48,8 +67,28 @@ import org.apache.tools.ant.util.FileUtils;
  * Each read attribute is mapped to an ant property composed with the
  * {@code <section name>.<attribute name>} except for attributes in the main
  * section.
+ * <p>
+ * Nested jar, war, zip, esa and eba archives are read directly: their
+ * manifest ({@code OSGI-INF/SUBSYSTEM.MF} for esa,
+ * {@code META-INF/APPLICATION.MF} for eba) is located through the central
+ * directory and archives are read concurrently. The attributes of each
+ * archive are mapped to properties named
+ * {@code <prefix><archive name>.<attribute name>}, where the archive name is
+ * the file name without extension, and an attribute with an explicit property
+ * is mapped to {@code <prefix><property>}. When the archive is the only
+ * resource its attributes are mapped as those of a manifest file, without
+ * archive name, and explicit properties are used as they are.
+ * <p>
+ * In lazy mode, when no attribute is configured, properties are not bound
+ * up front but resolved against the read manifests when first referenced.
+ * Lazy properties are not listed between the project properties until they
+ * are referenced.
  */
 public class ManifestReader extends Task {
+	private static final String MANIFEST_ENTRY = "META-INF/MANIFEST.MF";
+	private static final String SUBSYSTEM_ENTRY = "OSGI-INF/SUBSYSTEM.MF";
+	private static final String APPLICATION_ENTRY = "META-INF/APPLICATION.MF";
+
 	/**
 	 * An attribute for the manifest. Those attributes that are not nested into
 	 * a section will be added to the "Main" section.
@@ -57,6 +96,7 @@ public class ManifestReader extends Task {
 	public static class Attribute {
 		private String name;
 		private String property;
+		private boolean paths;
 
 		public Attribute(String name) {
 			this.name = name;
@@ -104,6 +144,26 @@ public class ManifestReader extends Task {
 		public void setProperty(String property) {
 			this.property = property;
 		}
+
+		/**
+		 * Returns if only the clause paths of the OSGi header are mapped.
+		 *
+		 * @return {@code true} if only the paths are mapped.
+		 */
+		public boolean isPaths() {
+			return paths;
+		}
+
+		/**
+		 * Maps only the paths of the OSGi header clauses, as the package
+		 * names of an Export-Package header, separated by comma.
+		 *
+		 * @param paths
+		 *            {@code true} to map only the clause paths.
+		 */
+		public void setPaths(boolean paths) {
+			this.paths = paths;
+		}
 	}
 
 	/**
@@ -164,6 +224,84 @@ public class ManifestReader extends Task {
 		}
 	}
 
+	/**
+	 * EnumeratedAttribute covering how an attribute read with different
+	 * values from more manifests is merged.
+	 */
+	public static class MergePolicy extends EnumeratedAttribute {
+
+		private static final String[] VALUES = { "lastwins", "firstwins", "concat", "fail" };
+
+		/** Keeps the value of the last manifest. */
+		public static final MergePolicy LAST_WINS = new MergePolicy("lastwins");
+
+		/** Keeps the value of the first manifest. */
+		public static final MergePolicy FIRST_WINS = new MergePolicy("firstwins");
+
+		/**
+		 * Joins the values separated by comma, only for list headers like
+		 * Export-Package, other attributes with different values fail the
+		 * build.
+		 */
+		public static final MergePolicy CONCAT = new MergePolicy("concat");
+
+		/** Fails the build. */
+		public static final MergePolicy FAIL = new MergePolicy("fail");
+
+		/**
+		 * Default constructor.
+		 */
+		public MergePolicy() {
+		}
+
+		/**
+		 * Construct a new policy with the specified value.
+		 *
+		 * @param value
+		 *            the EnumeratedAttribute value.
+		 */
+		public MergePolicy(String value) {
+			setValue(value);
+		}
+
+		/**
+		 * {@inheritDoc}.
+		 *
+		 * @see EnumeratedAttribute#getValues
+		 */
+		@Override
+		public String[] getValues() {
+			return Arrays.copyOf(VALUES, VALUES.length);
+		}
+
+		/**
+		 * Indicate if the first read value is kept.
+		 *
+		 * @return true if the policy is firstwins.
+		 */
+		public boolean isFirstWins() {
+			return "firstwins".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if the values are joined.
+		 *
+		 * @return true if the policy is concat.
+		 */
+		public boolean isConcat() {
+			return "concat".equalsIgnoreCase(getValue());
+		}
+
+		/**
+		 * Indicate if different values fail the build.
+		 *
+		 * @return true if the policy is fail.
+		 */
+		public boolean isFail() {
+			return "fail".equalsIgnoreCase(getValue());
+		}
+	}
+
 	private Section mainSection = new Section();
 	private Set<Section> sections = new HashSet<Section>();
 	private Resources resources = new Resources();
@@ -205,6 +343,45 @@ public class ManifestReader extends Task {
 	 */
 	private String prefix;
 
+	/**
+	 * Number of archives read concurrently.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If parsed manifests are shared through the project.
+	 */
+	private boolean useCache = true;
+
+	/**
+	 * Maximum size of the project manifest cache.
+	 */
+	private long cacheLimit;
+
+	private ManifestCache cache;
+
+	/**
+	 * If all attributes are resolved when referenced.
+	 */
+	private boolean lazy;
+
+	private ManifestPropertyEvaluator evaluator;
+
+	/**
+	 * How attributes of more manifests are merged.
+	 */
+	private MergePolicy mergePolicy = MergePolicy.LAST_WINS;
+
+	private ManifestMerger merger;
+
+	/**
+	 * The attribute names to read when not all attributes are bound.
+	 */
+	private List<String> mainAttributeNames;
+	private Map<String, List<String>> sectionAttributeNames;
+	/** Identifies the selected attributes in the keys of the cache. */
+	private String selectionKey;
+
 	/**
 	 * The name of the manifest file to read. Required if used as a task.
 	 *
@@ -225,6 +402,74 @@ public class ManifestReader extends Task {
 		this.prefix = prefix;
 	}
 
+	/**
+	 * Sets how many archives are read concurrently, by default the number of
+	 * available processors.
+	 *
+	 * @param threads
+	 *            the number of threads
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new BuildException("threads must be greater than zero");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets if the parsed manifests are cached in the project, so that reading
+	 * again a resource with the same name, size and last modified time does
+	 * not parse it again. Enabled by default. The reading of a manifest stops
+	 * once the configured attributes are found anyway, such a manifest is
+	 * cached only for reads of the same attributes.
+	 *
+	 * @param cache
+	 *            if the project manifest cache is used
+	 */
+	public void setCache(boolean cache) {
+		this.useCache = cache;
+	}
+
+	/**
+	 * Limits the size of the project manifest cache, the least recently used
+	 * manifests are evicted when the size of their text exceeds the limit.
+	 *
+	 * @param cacheLimit
+	 *            the limit in bytes, 0 means no limit
+	 */
+	public void setCacheLimit(long cacheLimit) {
+		this.cacheLimit = cacheLimit;
+	}
+
+	/**
+	 * Sets if, when no attribute is configured, the attributes are resolved
+	 * as properties only when referenced instead of binding all of them.
+	 *
+	 * @param lazy
+	 *            if properties are resolved on demand
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Sets how an attribute read with different values from more nested
+	 * manifests is merged: {@code lastwins} (the default) keeps the value of
+	 * the last manifest, {@code firstwins} the value of the first one,
+	 * {@code concat} joins the values separated by comma and {@code fail}
+	 * fails the build. Only the values of OSGi list headers, as
+	 * Export-Package or Require-Capability, are joined, a single valued
+	 * attribute like Bundle-Version fails the build with concat. The
+	 * resources that contributed each property are logged in verbose mode,
+	 * in lazy mode when the manifests are read.
+	 *
+	 * @param mergePolicy
+	 *            the merge policy
+	 */
+	public void setMergePolicy(MergePolicy mergePolicy) {
+		this.mergePolicy = mergePolicy;
+	}
+
 	/**
 	 * The encoding to use for reading in an existing manifest file
 	 *
@@ -263,106 +508,369 @@ public class ManifestReader extends Task {
 			throw new BuildException("Manifest does not exists: " + manifestFile);
 		}
 
-		resources.add(new FileResource(manifestFile));
+		if (manifestFile != null) {
+			resources.add(new FileResource(manifestFile));
+		}
 		if (resources.size() == 0) {
 			throw new BuildException("nested resource is empty");
 		}
 
-		InputStream is = null;
-		InputStreamReader isr = null;
-		Manifest current = null;
-		try {
-			@SuppressWarnings("rawtypes")
-			Iterator resIt = resources.iterator();
-			while (resIt.hasNext()) {
-				Object res = resIt.next();
-				if (!(res instanceof Resource)) {
-					continue;
-				}
-				Resource resource = (Resource) res;
-				is = resource.getInputStream();
-				if (encoding == null) {
-					isr = new InputStreamReader(is, "UTF-8");
+		cache = null;
+		if (useCache) {
+			cache = ManifestCache.getInstance(getProject());
+			if (cacheLimit > 0) {
+				cache.setLimit(cacheLimit);
+			}
+		}
+
+		evaluator = null;
+		mainAttributeNames = null;
+		sectionAttributeNames = null;
+		selectionKey = null;
+		if (sections.isEmpty() && mainSection.attributes.isEmpty()) {
+			if (lazy) {
+				evaluator = ManifestPropertyEvaluator.getInstance(getProject());
+			}
+		} else {
+			mainAttributeNames = getAttributeNames(mainSection);
+			sectionAttributeNames = new HashMap<String, List<String>>();
+			for (Section section : sections) {
+				List<String> names = sectionAttributeNames.get(section.getName());
+				if (names == null) {
+					sectionAttributeNames.put(section.getName(), getAttributeNames(section));
 				} else {
-					isr = new InputStreamReader(is, encoding);
+					names.addAll(getAttributeNames(section));
 				}
-				if (current == null) {
-					current = new Manifest(isr);
-				} else {
-					current.merge(new Manifest(isr));
+			}
+			selectionKey = getSelectionKey(mainAttributeNames, sectionAttributeNames);
+		}
+
+		List<Resource> manifests = new ArrayList<Resource>();
+		List<Resource> archives = new ArrayList<Resource>();
+		for (Resource resource : resources) {
+			if (getManifestEntry(resource) != null) {
+				archives.add(resource);
+			} else {
+				manifests.add(resource);
+			}
+		}
+
+		String propertyPrefix = prefix != null ? prefix : "";
+		merger = null;
+		if (!manifests.isEmpty()) {
+			Manifest current;
+			if (manifests.size() == 1) {
+				current = readManifest(manifests.get(0), null);
+			} else {
+				// cached manifests must not change
+				merger = new ManifestMerger(mergePolicy);
+				for (Resource resource : manifests) {
+					Manifest manifest = readManifest(resource, null);
+					try {
+						merger.add(manifest, resource);
+					} catch (BuildException e) {
+						throw new BuildException(e.getMessage(), e, getLocation());
+					}
 				}
+				current = merger.toManifest();
 			}
+			bindManifest(current, propertyPrefix, null);
+			merger = null;
+		}
 
-			// if no sections was specified all attributes will be read, copy
-			// all attributes from loaded manifest
-			if (sections.isEmpty() && mainSection.attributes.isEmpty()) {
-				mapAllAttributes(current);
+		// a single archive keeps the property names of a manifest file
+		boolean single = resources.size() == 1;
+		List<Manifest> archiveManifests = readArchives(archives);
+		for (int i = 0; i < archives.size(); i++) {
+			Manifest manifest = archiveManifests.get(i);
+			if (manifest != null && single) {
+				bindManifest(manifest, propertyPrefix, null);
+			} else if (manifest != null) {
+				bindManifest(manifest, propertyPrefix + getArchiveName(archives.get(i)) + '.', archives.get(i));
+			} else {
+				log("Unable to find the manifest of " + archives.get(i).getName(), Project.MSG_INFO);
 			}
+		}
+
+		if (cache != null) {
+			log(MessageFormat.format("Manifest cache: {0} hits, {1} misses, {2} manifests", //
+					cache.getHits(), cache.getMisses(), cache.size()), Project.MSG_VERBOSE);
+		}
+	}
 
-			if (current == null) {
-				return;
+	private static List<String> getAttributeNames(Section section) {
+		List<String> names = new ArrayList<String>(section.attributes.size());
+		for (Attribute attribute : section.attributes) {
+			names.add(attribute.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the manifest entry to read if the given resource is an archive.
+	 *
+	 * @param resource
+	 *            the resource to read
+	 * @return the manifest entry path or {@code null} if the resource is a
+	 *         manifest
+	 */
+	protected String getManifestEntry(Resource resource) {
+		String name = resource.getName().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".esa")) {
+			return SUBSYSTEM_ENTRY;
+		} else if (name.endsWith(".eba")) {
+			return APPLICATION_ENTRY;
+		} else if (name.endsWith(".jar") || name.endsWith(".war") || name.endsWith(".zip")) {
+			return MANIFEST_ENTRY;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the archive file name without extension.
+	 */
+	private static String getArchiveName(Resource resource) {
+		String name = new File(resource.getName()).getName();
+		int extension = name.lastIndexOf('.');
+		return extension > 0 ? name.substring(0, extension) : name;
+	}
+
+	/**
+	 * Reads the manifest of each archive, concurrently if more threads are
+	 * configured.
+	 *
+	 * @return the manifests in the order of the archives, {@code null} for
+	 *         those without manifest
+	 */
+	private List<Manifest> readArchives(List<Resource> archives) throws BuildException {
+		List<Manifest> result = new ArrayList<Manifest>(archives.size());
+		if (threads <= 1 || archives.size() < 2) {
+			for (Resource archive : archives) {
+				result.add(readArchive(archive));
 			}
+			return result;
+		}
 
-			bindAttributes(mainSection, current.getMainSection());
-			for (Section section : sections) {
-				Manifest.Section readSection = current.getSection(section.getName());
-				if (readSection != null) {
-					bindAttributes(section, readSection);
-				} else {
-					log("Unable to find attribute " + section.getName(), Project.MSG_INFO);
+		List<Callable<Manifest>> tasks = new ArrayList<Callable<Manifest>>(archives.size());
+		for (final Resource archive : archives) {
+			tasks.add(new Callable<Manifest>() {
+				@Override
+				public Manifest call() throws Exception {
+					return readArchive(archive);
 				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, archives.size()));
+		try {
+			for (Future<Manifest> future : executor.invokeAll(tasks)) {
+				result.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException("Interrupted while reading manifests", e, getLocation());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof BuildException) {
+				throw (BuildException) e.getCause();
+			}
+			throw new BuildException(e.getCause(), getLocation());
+		} finally {
+			executor.shutdownNow();
+		}
+		return result;
+	}
+
+	private Manifest readArchive(Resource archive) throws BuildException {
+		return readManifest(archive, getManifestEntry(archive));
+	}
+
+	/**
+	 * Returns a string that identifies the selected attributes, whatever the
+	 * order and the case they are configured with.
+	 */
+	private static String getSelectionKey(List<String> mainAttributeNames, Map<String, List<String>> sectionAttributeNames) {
+		StringBuilder key = new StringBuilder();
+		key.append(toSortedKeys(mainAttributeNames));
+		for (Map.Entry<String, List<String>> section : new TreeMap<String, List<String>>(sectionAttributeNames).entrySet()) {
+			key.append(section.getKey()).append('=').append(toSortedKeys(section.getValue()));
+		}
+		return key.toString();
+	}
+
+	private static Set<String> toSortedKeys(List<String> names) {
+		Set<String> keys = new TreeSet<String>();
+		for (String name : names) {
+			keys.add(name.toLowerCase(Locale.ENGLISH));
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads a manifest, looking it up first in the project manifest cache.
+	 * When only some attributes are bound, reading stops once they have been
+	 * found and the partial manifest is cached for the same selection of
+	 * attributes, a whole manifest already cached is used as well. Otherwise
+	 * the whole manifest is read and cached.
+	 *
+	 * @param resource
+	 *            the manifest or archive resource
+	 * @param entryName
+	 *            the manifest entry inside the archive, {@code null} if the
+	 *            resource is the manifest
+	 * @return the manifest, {@code null} if the archive has not the entry
+	 * @throws BuildException
+	 *             if the manifest can not be read
+	 */
+	private Manifest readManifest(Resource resource, String entryName) throws BuildException {
+		String key = null;
+		if (cache != null) {
+			key = ManifestCache.getKey(resource, entryName);
+			Manifest manifest;
+			if (selectionKey != null) {
+				String wholeKey = key;
+				key += '#' + selectionKey;
+				manifest = cache.get(wholeKey, key);
+			} else {
+				manifest = cache.get(key);
+			}
+			if (manifest != null) {
+				return manifest;
+			}
+		}
+
+		InputStreamReader isr = null;
+		try {
+			InputStream is = entryName != null ? ArchiveUtils.openEntry(resource, entryName) : resource.getInputStream();
+			if (is == null) {
+				return null;
 			}
-		} catch (ManifestException m) {
-			throw new BuildException("Existing manifest " + manifestFile + " is invalid", m, getLocation());
+			CountingInputStream counter = new CountingInputStream(is);
+			isr = new InputStreamReader(counter, encoding != null ? encoding : "UTF-8");
+			Manifest manifest;
+			if (mainAttributeNames != null) {
+				manifest = new ManifestScanner(isr).read(mainAttributeNames, sectionAttributeNames);
+			} else {
+				manifest = new Manifest(isr);
+			}
+			if (cache != null) {
+				cache.put(key, manifest, counter.getCount());
+			}
+			return manifest;
+		} catch (ManifestException e) {
+			throw new BuildException("Existing manifest " + resource + " is invalid", e, getLocation());
 		} catch (IOException e) {
-			throw new BuildException("Failed to read " + manifestFile, e, getLocation());
+			throw new BuildException("Failed to read " + resource, e, getLocation());
 		} finally {
 			FileUtils.close(isr);
 		}
-
 	}
 
-	private void mapAllAttributes(Manifest main) throws ManifestException {
-		copyAttributes(main.getMainSection(), mainSection);
+	/**
+	 * Binds the configured attributes of the given manifest, or all its
+	 * attributes if none is configured, deferred to the first reference in
+	 * lazy mode.
+	 *
+	 * @param manifest
+	 *            the read manifest
+	 * @param propertyPrefix
+	 *            the prefix of the properties
+	 * @param archive
+	 *            the archive of the manifest, {@code null} if not read from
+	 *            an archive
+	 */
+	private void bindManifest(Manifest manifest, String propertyPrefix, Resource archive) {
+		if (evaluator != null) {
+			if (merger != null) {
+				logContributors(manifest.getMainSection(), propertyPrefix);
+				@SuppressWarnings("unchecked")
+				Enumeration<String> sectionNames = manifest.getSectionNames();
+				while (sectionNames.hasMoreElements()) {
+					String sectionName = sectionNames.nextElement();
+					logContributors(manifest.getSection(sectionName), propertyPrefix + sectionName + '.');
+				}
+			}
+			evaluator.addManifest(propertyPrefix, manifest);
+			return;
+		}
+		if (sections.isEmpty() && mainSection.attributes.isEmpty()) {
+			bindAllAttributes(manifest.getMainSection(), propertyPrefix);
+			@SuppressWarnings("unchecked")
+			Enumeration<String> sectionNames = manifest.getSectionNames();
+			while (sectionNames.hasMoreElements()) {
+				String sectionName = sectionNames.nextElement();
+				bindAllAttributes(manifest.getSection(sectionName), propertyPrefix + sectionName + '.');
+			}
+			return;
+		}
 
-		@SuppressWarnings("rawtypes")
-		Enumeration sectionNames = main.getSectionNames();
-		while (sectionNames.hasMoreElements()) {
-			org.apache.tools.ant.taskdefs.Manifest.Section readSection = main.getSection((String) sectionNames.nextElement());
-			Section section = new Section(readSection.getName());
-			copyAttributes(readSection, section);
-			addConfiguredSection(section);
+		bindAttributes(mainSection, manifest.getMainSection(), propertyPrefix, archive);
+		for (Section section : sections) {
+			Manifest.Section readSection = manifest.getSection(section.getName());
+			if (readSection != null) {
+				bindAttributes(section, readSection, propertyPrefix, archive);
+			} else {
+				log("Unable to find attribute " + section.getName(), Project.MSG_INFO);
+			}
 		}
 	}
 
-	private void copyAttributes(Manifest.Section sourceSection, Section destSection) {
-		@SuppressWarnings("rawtypes")
-		Enumeration attributeKeys = sourceSection.getAttributeKeys();
+	/**
+	 * Logs the contributors of the merged attributes, lazy properties are
+	 * bound when the merger is gone.
+	 */
+	private void logContributors(Manifest.Section readSection, String propertyPrefix) {
+		@SuppressWarnings("unchecked")
+		Enumeration<String> attributeKeys = readSection.getAttributeKeys();
+		while (attributeKeys.hasMoreElements()) {
+			Manifest.Attribute readAttribute = readSection.getAttribute(attributeKeys.nextElement());
+			log(propertyPrefix + readAttribute.getName() + " contributed by " //
+					+ merger.getContributors(readSection.getName(), readAttribute.getName()), Project.MSG_VERBOSE);
+		}
+	}
 
+	private void bindAllAttributes(Manifest.Section readSection, String propertyPrefix) {
+		@SuppressWarnings("unchecked")
+		Enumeration<String> attributeKeys = readSection.getAttributeKeys();
 		while (attributeKeys.hasMoreElements()) {
-			org.apache.tools.ant.taskdefs.Manifest.Attribute readAttribute = sourceSection.getAttribute((String) attributeKeys.nextElement());
-			Attribute attribute = new Attribute(readAttribute.getName());
-			destSection.addConfiguredAttribute(attribute);
+			Manifest.Attribute readAttribute = readSection.getAttribute(attributeKeys.nextElement());
+			bindProperty(propertyPrefix + readAttribute.getName(), readAttribute.getValue(), readSection, readAttribute);
 		}
 	}
 
-	private void bindAttributes(Section section, Manifest.Section readSection) {
+	private void bindProperty(String property, String value, Manifest.Section readSection, Manifest.Attribute readAttribute) {
+		if (merger != null) {
+			log(property + " contributed by " + merger.getContributors(readSection.getName(), readAttribute.getName()), Project.MSG_VERBOSE);
+		}
+		addProperty(property, value);
+	}
+
+	private void bindAttributes(Section section, Manifest.Section readSection, String propertyPrefix, Resource archive) {
 		for (Attribute attribute : section.attributes) {
 			Manifest.Attribute readAttribute = readSection.getAttribute(attribute.getName());
 			if (readAttribute != null) {
 				String property = attribute.getProperty();
 				if (property == null) {
 					if (section == mainSection) {
-						property = prefix + attribute.getName();
+						property = propertyPrefix + attribute.getName();
 					} else {
-						property = prefix + section.name + '.' + attribute.getName();
+						property = propertyPrefix + section.name + '.' + attribute.getName();
 					}
+				} else if (archive != null) {
+					// one property for each archive
+					property = propertyPrefix + property;
 				}
-				addProperty(property, readAttribute.getValue());
+				String value = readAttribute.getValue();
+				if (attribute.isPaths()) {
+					try {
+						value = StringUtils.join(Arrays.asList(HeaderTokenizer.getPaths(value)), ",");
+					} catch (IllegalArgumentException e) {
+						throw new BuildException("Invalid header " + attribute.getName() + ": " + e.getMessage(), e, getLocation());
+					}
+				}
+				bindProperty(property, value, readSection, readAttribute);
 			} else {
 				log("Unable to find attribute " + attribute.getName(), Project.MSG_INFO);
 			}
 		}
 	}
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.taskdefs.ManifestException;
+
+/**
+ * Reads only the selected attributes of a manifest.
+ * <p>
+ * The manifest is read line by line and reading stops as soon as all
+ * selected attributes of the main section and all selected sections have
+ * been read. Sections not selected are skipped character by character up to
+ * the next blank line, no attribute is built for them.
+ */
+class ManifestScanner {
+	private static final String NAME_KEY = Manifest.ATTRIBUTE_NAME.toLowerCase(Locale.ENGLISH);
+
+	private final BufferedReader reader;
+	private String nextLine;
+	private boolean pushedBack;
+	private String nextSectionName;
+
+	/**
+	 * Creates a scanner of the manifest text.
+	 *
+	 * @param reader
+	 *            the manifest reader
+	 */
+	ManifestScanner(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+
+	/**
+	 * Reads the selected attributes.
+	 *
+	 * @param mainAttributes
+	 *            the attribute names of the main section
+	 * @param sections
+	 *            the section names mapped to their attribute names
+	 * @return a manifest with only the selected attributes found and the
+	 *         selected sections found
+	 * @throws ManifestException
+	 *             if a read section is not valid
+	 * @throws IOException
+	 *             if the manifest can not be read
+	 */
+	Manifest read(Collection<String> mainAttributes, Map<String, ? extends Collection<String>> sections) throws ManifestException, IOException {
+		Manifest manifest = new Manifest();
+
+		Set<String> mainKeys = toKeys(mainAttributes);
+		Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+		for (Entry<String, ? extends Collection<String>> section : sections.entrySet()) {
+			pending.put(section.getKey(), toKeys(section.getValue()));
+		}
+
+		Manifest.Attribute attribute;
+		while ((attribute = readAttribute()) != null) {
+			if (mainKeys.remove(attribute.getKey())) {
+				manifest.addConfiguredAttribute(attribute);
+				if (mainKeys.isEmpty() && pending.isEmpty()) {
+					return manifest;
+				}
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			String name = readSectionName();
+			if (name == null) {
+				break;
+			}
+			Set<String> keys = pending.remove(name);
+			if (keys == null) {
+				skipSection();
+				continue;
+			}
+
+			Manifest.Section section = new Manifest.Section();
+			section.setName(name);
+			manifest.addConfiguredSection(section);
+			while (!keys.isEmpty() && (attribute = readAttribute()) != null) {
+				if (keys.remove(attribute.getKey())) {
+					section.addAttributeAndCheck(attribute);
+				}
+			}
+			if (keys.isEmpty() && !pending.isEmpty()) {
+				skipSection();
+			}
+		}
+		return manifest;
+	}
+
+	private static Set<String> toKeys(Collection<String> names) {
+		Set<String> keys = new HashSet<String>(names.size() * 2);
+		for (String name : names) {
+			keys.add(name.toLowerCase(Locale.ENGLISH));
+		}
+		return keys;
+	}
+
+	private String readLine() throws IOException {
+		if (pushedBack) {
+			pushedBack = false;
+			return nextLine;
+		}
+		return reader.readLine();
+	}
+
+	private void pushBack(String line) {
+		nextLine = line;
+		pushedBack = true;
+	}
+
+	/**
+	 * Reads the next attribute of the current section with its continuation
+	 * lines.
+	 *
+	 * @return the attribute or {@code null} at the end of the section
+	 */
+	private Manifest.Attribute readAttribute() throws ManifestException, IOException {
+		if (nextSectionName != null) {
+			return null;
+		}
+		String line = readLine();
+		if (line == null || line.isEmpty()) {
+			return null;
+		}
+		if (line.charAt(0) == ' ') {
+			throw new ManifestException("Can't start an attribute with a continuation line " + line);
+		}
+		Manifest.Attribute attribute = new Manifest.Attribute(line);
+		while ((line = readLine()) != null && !line.isEmpty() && line.charAt(0) == ' ') {
+			attribute.addContinuation(line);
+		}
+		pushBack(line);
+
+		if (NAME_KEY.equals(attribute.getKey())) {
+			// malformed manifest, a section starts without blank line
+			nextSectionName = attribute.getValue();
+			return null;
+		}
+		return attribute;
+	}
+
+	/**
+	 * Reads the name of the next section.
+	 *
+	 * @return the section name or {@code null} at the end of the manifest
+	 */
+	private String readSectionName() throws ManifestException, IOException {
+		if (nextSectionName != null) {
+			String name = nextSectionName;
+			nextSectionName = null;
+			return name;
+		}
+
+		String line;
+		do {
+			line = readLine();
+		} while (line != null && line.isEmpty());
+		if (line == null) {
+			return null;
+		}
+		pushBack(line);
+
+		Manifest.Attribute attribute = readAttribute();
+		if (attribute != null) {
+			throw new ManifestException("Manifest sections should start with a \"" + Manifest.ATTRIBUTE_NAME + "\" attribute and not \"" + attribute.getName() + "\"");
+		}
+		String name = nextSectionName;
+		nextSectionName = null;
+		return name;
+	}
+
+	/**
+	 * Skips the rest of the current section up to the next blank line.
+	 */
+	private void skipSection() throws IOException {
+		if (nextSectionName != null) {
+			return;
+		}
+		if (pushedBack) {
+			pushedBack = false;
+			if (nextLine == null || nextLine.isEmpty()) {
+				return;
+			}
+		}
+
+		boolean lineStart = true;
+		int c;
+		while ((c = reader.read()) != -1) {
+			if (c == '\n' || c == '\r') {
+				if (c == '\r') {
+					reader.mark(1);
+					if (reader.read() != '\n') {
+						reader.reset();
+					}
+				}
+				if (lineStart) {
+					return;
+				}
+				lineStart = true;
+			} else {
+				lineStart = false;
+			}
+		}
+	}
+}
@@ -30,4 +30,6 @@ public final class SubsystemConstants {
 
 	public static final String SUBSYSTEM_TYPE = "Subsystem-Type";
 
+	public static final String SUBSYSTEM_TYPE_FEATURE = "osgi.subsystem.feature";
+
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores each distinct string once.
+ * <p>
+ * Package names, bundle names and versions repeat in many bundles, the
+ * bundle informations refer to the strings of the table so that any of them
+ * is kept in memory once, however many bundles are analysed. Strings are
+ * weakly referenced, a string no longer used by any bundle information is
+ * removed by the garbage collector, so the table does not grow across the
+ * builds of a long running JVM. The table is concurrent, lookups from many
+ * threads do not contend on a lock.
+ */
+/* package */ final class SymbolTable {
+
+	/** The table shared by all bundle informations. */
+	static final SymbolTable SYMBOLS = new SymbolTable();
+
+	/**
+	 * A weak reference to a string, equal to the references to an equal
+	 * string. Once cleared it is equal only to itself.
+	 */
+	private static final class Symbol extends WeakReference<String> {
+		private final int hash;
+
+		Symbol(String symbol, ReferenceQueue<String> queue) {
+			super(symbol, queue);
+			this.hash = symbol.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof Symbol) || ((Symbol) obj).hash != hash) {
+				return false;
+			}
+			String symbol = get();
+			return symbol != null && symbol.equals(((Symbol) obj).get());
+		}
+	}
+
+	private final ConcurrentMap<Symbol, Symbol> symbols = new ConcurrentHashMap<Symbol, Symbol>();
+	private final ReferenceQueue<String> collected = new ReferenceQueue<String>();
+
+	/**
+	 * Returns the instance of the table equal to the given string, adding
+	 * it to the table if needed.
+	 *
+	 * @param symbol
+	 *            the string, may be {@code null}
+	 * @return the string stored in the table or {@code null}
+	 */
+	public String canonical(String symbol) {
+		if (symbol == null) {
+			return null;
+		}
+		expunge();
+		Symbol key = new Symbol(symbol, collected);
+		while (true) {
+			Symbol existing = symbols.putIfAbsent(key, key);
+			if (existing == null) {
+				return symbol;
+			}
+			String canonical = existing.get();
+			if (canonical != null) {
+				return canonical;
+			}
+			// collected meanwhile
+			symbols.remove(existing, existing);
+		}
+	}
+
+	/**
+	 * Returns the number of strings in the table, strings no longer
+	 * referenced may still be counted until they are collected.
+	 *
+	 * @return the table size
+	 */
+	public int size() {
+		expunge();
+		return symbols.size();
+	}
+
+	/**
+	 * Removes the entries of the collected strings.
+	 */
+	private void expunge() {
+		Reference<? extends String> reference;
+		while ((reference = collected.poll()) != null) {
+			symbols.remove(reference, reference);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.util.FileUtils;
+
+public final class ArchiveUtils {
+
+	private ArchiveUtils() {
+	}
+
+	/**
+	 * Opens an entry of an archive resource.
+	 * <p>
+	 * Resources backed by a file are opened with random access, so the entry
+	 * is located through the central directory and only its data is read.
+	 * Any other resource is streamed until the entry is found.
+	 *
+	 * @param resource
+	 *            the archive resource
+	 * @param entryName
+	 *            the entry path inside the archive
+	 * @return the entry data, closing it closes the archive, or {@code null}
+	 *         if the archive does not contain the entry
+	 * @throws IOException
+	 *             if the archive can not be read
+	 */
+	public static InputStream openEntry(Resource resource, String entryName) throws IOException {
+		FileProvider fileProvider = resource.as(FileProvider.class);
+		if (fileProvider != null) {
+			final ZipFile zip = new ZipFile(fileProvider.getFile());
+			boolean opened = false;
+			try {
+				ZipEntry zipEntry = zip.getEntry(entryName);
+				if (zipEntry == null || zipEntry.isDirectory()) {
+					return null;
+				}
+				InputStream is = new FilterInputStream(zip.getInputStream(zipEntry)) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							zip.close();
+						}
+					}
+				};
+				opened = true;
+				return is;
+			} finally {
+				if (!opened) {
+					zip.close();
+				}
+			}
+		}
+
+		ZipInputStream zip = new ZipInputStream(resource.getInputStream());
+		boolean opened = false;
+		try {
+			ZipEntry zipEntry;
+			while ((zipEntry = zip.getNextEntry()) != null) {
+				if (!zipEntry.isDirectory() && entryName.equals(zipEntry.getName())) {
+					opened = true;
+					return zip;
+				}
+			}
+			return null;
+		} finally {
+			if (!opened) {
+				FileUtils.close(zip);
+			}
+		}
+	}
+}
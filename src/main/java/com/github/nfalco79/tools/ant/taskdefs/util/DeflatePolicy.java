@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Decides which archive entries are worth to deflate.
+ * <p>
+ * Nested archives and other already compressed formats are stored, text
+ * and class files are deflated. For any other entry a sample of the first
+ * bytes is deflated and the entry is stored if the sample does not shrink
+ * enough.
+ * <p>
+ * The policy also collects statistics to estimate the CPU time saved by
+ * the stored entries, it is safe to use from multiple threads.
+ */
+public class DeflatePolicy {
+	/** The number of bytes used to sample entries of unknown type. */
+	public static final int SAMPLE_SIZE = 64 * 1024;
+
+	/** A sample must shrink at least of 5% to deflate its entry. */
+	private static final double MIN_RATIO = 0.95d;
+
+	/** Deflate cost used when nothing has been deflated yet, ~50MB/s. */
+	private static final double DEFAULT_NANOS_PER_BYTE = 20d;
+
+	private static final Set<String> STORED_EXTENSIONS = new HashSet<String>(Arrays.asList( //
+			"jar", "war", "ear", "rar", "esa", "eba", "zip", "gz", "tgz", "bz2", "xz", "7z", "lzma", //
+			"png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "ogg", "woff", "woff2"));
+
+	private static final Set<String> DEFLATED_EXTENSIONS = new HashSet<String>(Arrays.asList( //
+			"class", "txt", "xml", "xsd", "properties", "mf", "sf", "html", "htm", "js", "css", "json", //
+			"java", "jsp", "tld", "sql", "yml", "yaml", "svg", "md", "csv"));
+
+	/**
+	 * The decision taken by the entry name.
+	 */
+	public enum Decision {
+		/** Entry must be stored. */
+		STORE,
+		/** Entry must be deflated. */
+		DEFLATE,
+		/** Entry content must be sampled. */
+		SAMPLE
+	}
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+	private final int level;
+	private final AtomicLong storedEntries = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong deflatedBytes = new AtomicLong();
+	private final AtomicLong deflateNanos = new AtomicLong();
+
+	/**
+	 * Creates a policy that samples entries with the given compression
+	 * level.
+	 *
+	 * @param level
+	 *            the deflate level, -1 for the default
+	 */
+	public DeflatePolicy(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Decides if an entry must be deflated by looking at its name only.
+	 *
+	 * @param name
+	 *            the entry name
+	 * @return the decision
+	 */
+	public Decision decide(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot == -1 || dot < name.lastIndexOf('/')) {
+			return Decision.SAMPLE;
+		}
+		String extension = name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+		if (STORED_EXTENSIONS.contains(extension)) {
+			return Decision.STORE;
+		}
+		if (DEFLATED_EXTENSIONS.contains(extension)) {
+			return Decision.DEFLATE;
+		}
+		return Decision.SAMPLE;
+	}
+
+	/**
+	 * Decides if an entry is worth to deflate given a sample of its first
+	 * bytes. The sample is not recorded in the statistics, the caller records
+	 * how the whole entry is finally written.
+	 *
+	 * @param sample
+	 *            the sample data
+	 * @param length
+	 *            the number of valid bytes in the sample
+	 * @return {@code true} if the entry should be deflated
+	 */
+	public boolean isCompressible(byte[] sample, int length) {
+		if (length == 0) {
+			return false;
+		}
+		if (length >= 4 && sample[0] == 'P' && sample[1] == 'K' && sample[2] == 3 && sample[3] == 4) {
+			// nested archive whatever its name is
+			return false;
+		}
+		if (length >= 2 && (sample[0] & 0xFF) == 0x1F && (sample[1] & 0xFF) == 0x8B) {
+			// gzip stream
+			return false;
+		}
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] buffer = new byte[length];
+			int compressed = 0;
+			while (!deflater.finished() && compressed < length) {
+				compressed += deflater.deflate(buffer, compressed, length - compressed);
+			}
+			return deflater.finished() && compressed < length * MIN_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Records an entry that has been stored instead of deflated.
+	 *
+	 * @param size
+	 *            the entry size
+	 */
+	public void recordStored(long size) {
+		storedEntries.incrementAndGet();
+		storedBytes.addAndGet(size);
+	}
+
+	/**
+	 * Records the CPU time spent to deflate some data.
+	 *
+	 * @param size
+	 *            the number of deflated bytes
+	 * @param nanos
+	 *            the CPU time spent
+	 */
+	public void recordDeflated(long size, long nanos) {
+		deflatedBytes.addAndGet(size);
+		deflateNanos.addAndGet(nanos);
+	}
+
+	public long getStoredEntries() {
+		return storedEntries.get();
+	}
+
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	public long getDeflatedBytes() {
+		return deflatedBytes.get();
+	}
+
+	/**
+	 * Estimates the CPU time that deflating the stored entries would have
+	 * taken, using the deflate cost measured on this archive.
+	 *
+	 * @return the estimated saved CPU time in milliseconds
+	 */
+	public long getSavedMillis() {
+		long bytes = deflatedBytes.get();
+		double nanosPerByte = bytes > 0 ? (double) deflateNanos.get() / bytes : DEFAULT_NANOS_PER_BYTE;
+		return (long) (storedBytes.get() * nanosPerByte / 1000000d);
+	}
+
+	/**
+	 * Returns the CPU time of the current thread, falls back to the wall
+	 * clock if not supported by the JVM.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public static long cpuTime() {
+		if (THREAD_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_BEAN.isThreadCpuTimeEnabled()) {
+			return THREAD_BEAN.getCurrentThreadCpuTime();
+		}
+		return System.nanoTime();
+	}
+}
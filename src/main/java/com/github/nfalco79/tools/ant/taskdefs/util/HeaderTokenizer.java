@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cursor over the clauses of an OSGi manifest header like
+ * {@code Export-Package} or {@code Require-Bundle}.
+ * <p>
+ * The header is scanned once, without regular expressions, and each call to
+ * {@link #next()} moves to the following token: a path of the current clause,
+ * an attribute ({@code name=value}), a directive ({@code name:=value}) or
+ * the end of a clause. Commas and semicolons inside quoted values are not
+ * separators. Names and values are returned as strings only when requested.
+ *
+ * <pre>
+ * HeaderTokenizer tokenizer = new HeaderTokenizer(header);
+ * int token;
+ * while ((token = tokenizer.next()) != HeaderTokenizer.END) {
+ * 	if (token == HeaderTokenizer.PATH) {
+ * 		String path = tokenizer.getName();
+ * 	}
+ * }
+ * </pre>
+ */
+public class HeaderTokenizer {
+	/** No more tokens in the header. */
+	public static final int END = -1;
+	/** A path of the current clause, as a package or bundle name. */
+	public static final int PATH = 0;
+	/** An attribute of the current clause. */
+	public static final int ATTRIBUTE = 1;
+	/** A directive of the current clause. */
+	public static final int DIRECTIVE = 2;
+	/** The end of the current clause. */
+	public static final int CLAUSE_END = 3;
+
+	private final String header;
+	private final int length;
+	private int position;
+	private boolean inClause;
+	private int clauseStart;
+	private int clauseEnd;
+	private int parametersStart;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd;
+	private boolean escaped;
+
+	public HeaderTokenizer(String header) {
+		this.header = header;
+		this.length = header.length();
+	}
+
+	/**
+	 * Moves to the next token of the header.
+	 *
+	 * @return the type of the token, {@link #END} when the header is over
+	 * @throws IllegalArgumentException
+	 *             if the header syntax is not valid
+	 */
+	public int next() {
+		if (!inClause) {
+			skipWhitespaces();
+			if (position >= length) {
+				return END;
+			}
+			inClause = true;
+			clauseStart = position;
+			parametersStart = -1;
+		}
+
+		while (true) {
+			skipWhitespaces();
+			if (position >= length || header.charAt(position) == ',') {
+				clauseEnd = trimEnd(clauseStart, position);
+				if (position < length) {
+					position++;
+				}
+				inClause = false;
+				return CLAUSE_END;
+			}
+
+			nameStart = position;
+			int type = PATH;
+			while (position < length) {
+				char c = header.charAt(position);
+				if (c == ';' || c == ',') {
+					break;
+				} else if (c == '=') {
+					type = ATTRIBUTE;
+					break;
+				} else if (c == ':' && position + 1 < length && header.charAt(position + 1) == '=') {
+					type = DIRECTIVE;
+					break;
+				}
+				position++;
+			}
+			nameEnd = trimEnd(nameStart, position);
+
+			if (type == PATH) {
+				if (position < length && header.charAt(position) == ';') {
+					position++;
+				}
+				if (nameStart == nameEnd) {
+					// empty path as in "a;;b"
+					continue;
+				}
+				if (parametersStart != -1) {
+					throw new IllegalArgumentException("Path " + getName() + " follows the parameters of the clause at " + nameStart + " in: " + header);
+				}
+				return PATH;
+			}
+
+			if (nameStart == nameEnd) {
+				throw new IllegalArgumentException("Missing parameter name at " + nameStart + " in: " + header);
+			}
+			if (parametersStart == -1) {
+				parametersStart = nameStart;
+			}
+			position += type == DIRECTIVE ? 2 : 1;
+			readValue();
+			return type;
+		}
+	}
+
+	private void readValue() {
+		skipWhitespaces();
+		escaped = false;
+		if (position < length && header.charAt(position) == '"') {
+			valueStart = ++position;
+			while (position < length && header.charAt(position) != '"') {
+				if (header.charAt(position) == '\\') {
+					escaped = true;
+					position++;
+				}
+				position++;
+			}
+			if (position >= length) {
+				throw new IllegalArgumentException("Unterminated quoted value at " + (valueStart - 1) + " in: " + header);
+			}
+			valueEnd = position++;
+			skipWhitespaces();
+		} else {
+			valueStart = position;
+			while (position < length && header.charAt(position) != ';' && header.charAt(position) != ',') {
+				position++;
+			}
+			valueEnd = trimEnd(valueStart, position);
+		}
+
+		if (position < length) {
+			char c = header.charAt(position);
+			if (c == ';') {
+				position++;
+			} else if (c != ',') {
+				throw new IllegalArgumentException("Unexpected character '" + c + "' at " + position + " in: " + header);
+			}
+		}
+	}
+
+	private void skipWhitespaces() {
+		while (position < length && Character.isWhitespace(header.charAt(position))) {
+			position++;
+		}
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && Character.isWhitespace(header.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the path or the parameter name of the current token.
+	 *
+	 * @return the current name
+	 */
+	public String getName() {
+		return header.substring(nameStart, nameEnd);
+	}
+
+	/**
+	 * Returns the value of the current attribute or directive, without quotes
+	 * and escape characters.
+	 *
+	 * @return the current value
+	 */
+	public String getValue() {
+		if (!escaped) {
+			return header.substring(valueStart, valueEnd);
+		}
+		StringBuilder sb = new StringBuilder(valueEnd - valueStart);
+		for (int i = valueStart; i < valueEnd; i++) {
+			char c = header.charAt(i);
+			if (c == '\\' && i + 1 < valueEnd) {
+				c = header.charAt(++i);
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the text of the clause just ended, as written in the header.
+	 *
+	 * @return the clause text
+	 */
+	public String getClause() {
+		return header.substring(clauseStart, clauseEnd);
+	}
+
+	/**
+	 * Returns the attributes and directives of the clause just ended, as
+	 * written in the header.
+	 *
+	 * @return the clause parameters or an empty string if the clause has
+	 *         only paths
+	 */
+	public String getParameters() {
+		return parametersStart == -1 ? "" : header.substring(parametersStart, clauseEnd);
+	}
+
+	/**
+	 * Returns the paths of all clauses of the given header.
+	 *
+	 * @param header
+	 *            the header value
+	 * @return the clause paths in header order
+	 */
+	public static String[] getPaths(String header) {
+		List<String> paths = new ArrayList<String>();
+		HeaderTokenizer tokenizer = new HeaderTokenizer(header);
+		int token;
+		while ((token = tokenizer.next()) != END) {
+			if (token == PATH) {
+				paths.add(tokenizer.getName());
+			}
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache that evicts the least recently used entries.
+ * <p>
+ * Entries are spread by hash over a few segments, each one locked on its
+ * own and evicting its least recently used entry when full, so concurrent
+ * lookups seldom wait for each other.
+ *
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the values
+ */
+/* package */ final class LRUCache<K, V> {
+	private static final int SEGMENTS = 16;
+
+	private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	private final List<Segment<K, V>> segments;
+
+	/**
+	 * Creates a cache of the given size.
+	 *
+	 * @param capacity
+	 *            the maximum number of entries
+	 */
+	LRUCache(int capacity) {
+		segments = new ArrayList<Segment<K, V>>(SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments.add(new Segment<K, V>(Math.max(1, capacity / SEGMENTS)));
+		}
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int hash = key.hashCode();
+		return segments.get((hash ^ (hash >>> 16)) & (SEGMENTS - 1));
+	}
+
+	/**
+	 * Returns the value of a key, making it the most recently used.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the value or {@code null} if not cached
+	 */
+	V get(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.get(key);
+		}
+	}
+
+	/**
+	 * Caches a value if the key has not one yet.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @return the value cached for the key, the given one if it was not
+	 *         cached
+	 */
+	V putIfAbsent(K key, V value) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			V previous = segment.get(key);
+			if (previous != null) {
+				return previous;
+			}
+			segment.put(key, value);
+			return value;
+		}
+	}
+
+	/**
+	 * Returns the number of cached entries.
+	 *
+	 * @return the cache size
+	 */
+	int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+}
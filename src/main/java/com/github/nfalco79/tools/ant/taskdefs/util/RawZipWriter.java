@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static com.github.nfalco79.tools.ant.taskdefs.util.ZipIndex.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.ZipIndex.Entry;
+
+/**
+ * Writes a zip archive whose entries are already compressed.
+ * <p>
+ * The caller gives method, CRC and sizes of each entry up front and then
+ * writes exactly {@link Entry#getCompressedSize()} bytes of raw data, so
+ * nothing is compressed or checksummed again. Zip64 extensions are not
+ * supported.
+ */
+public class RawZipWriter implements Closeable {
+
+	private final OutputStream out;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private long position;
+	private Entry current;
+	private long currentDataStart;
+
+	public RawZipWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Starts a new entry writing its local file header.
+	 *
+	 * @param entry
+	 *            the entry to write, its local header offset is updated
+	 * @throws IOException
+	 *             in case of I/O errors or if the archive would require Zip64
+	 *             extensions
+	 */
+	public void putEntry(Entry entry) throws IOException {
+		closeEntry();
+		if (entries.size() >= 0xFFFF) {
+			throw new ZipException("Too many entries, Zip64 archives are not supported");
+		}
+
+		entry.setFlags(entry.getFlags() & ~DATA_DESCRIPTOR_FLAG);
+		entry.setLocalHeaderOffset(position);
+		if (entry.getLocalExtra() == null) {
+			entry.setLocalExtra(entry.getExtra());
+		}
+
+		byte[] name = entry.getRawName();
+		byte[] extra = entry.getLocalExtra();
+		ByteBuffer lfh = ByteBuffer.allocate(LFH_LENGTH + name.length + extra.length).order(ByteOrder.LITTLE_ENDIAN);
+		lfh.putInt(LFH_SIG);
+		lfh.putShort((short) entry.getVersionNeeded());
+		lfh.putShort((short) entry.getFlags());
+		lfh.putShort((short) entry.getMethod());
+		lfh.putInt(entry.getDosTime());
+		lfh.putInt((int) entry.getCrc());
+		lfh.putInt((int) entry.getCompressedSize());
+		lfh.putInt((int) entry.getSize());
+		lfh.putShort((short) name.length);
+		lfh.putShort((short) extra.length);
+		lfh.put(name);
+		lfh.put(extra);
+		writeOut(lfh.array(), 0, lfh.position());
+
+		current = entry;
+		currentDataStart = position;
+	}
+
+	/**
+	 * Writes raw data of the current entry.
+	 *
+	 * @param b
+	 *            the data
+	 * @param off
+	 *            the start offset in the data
+	 * @param len
+	 *            the number of bytes to write
+	 * @throws IOException
+	 *             in case of I/O errors
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (current == null) {
+			throw new IllegalStateException("No current entry");
+		}
+		writeOut(b, off, len);
+	}
+
+	/**
+	 * Writes the central directory. No more entries can be added.
+	 *
+	 * @param comment
+	 *            the archive comment, may be {@code null}
+	 * @throws IOException
+	 *             in case of I/O errors
+	 */
+	public void finish(byte[] comment) throws IOException {
+		closeEntry();
+
+		long cdOffset = position;
+		for (Entry entry : entries) {
+			byte[] name = entry.getRawName();
+			byte[] extra = entry.getExtra();
+			byte[] entryComment = entry.getComment();
+			ByteBuffer cfh = ByteBuffer.allocate(CFH_LENGTH + name.length + extra.length + entryComment.length).order(ByteOrder.LITTLE_ENDIAN);
+			cfh.putInt(CFH_SIG);
+			cfh.putShort((short) entry.getVersionMadeBy());
+			cfh.putShort((short) entry.getVersionNeeded());
+			cfh.putShort((short) entry.getFlags());
+			cfh.putShort((short) entry.getMethod());
+			cfh.putInt(entry.getDosTime());
+			cfh.putInt((int) entry.getCrc());
+			cfh.putInt((int) entry.getCompressedSize());
+			cfh.putInt((int) entry.getSize());
+			cfh.putShort((short) name.length);
+			cfh.putShort((short) extra.length);
+			cfh.putShort((short) entryComment.length);
+			cfh.putShort((short) 0); // disk number start
+			cfh.putShort((short) entry.getInternalAttributes());
+			cfh.putInt((int) entry.getExternalAttributes());
+			cfh.putInt((int) entry.getLocalHeaderOffset());
+			cfh.put(name);
+			cfh.put(extra);
+			cfh.put(entryComment);
+			writeOut(cfh.array(), 0, cfh.position());
+		}
+		long cdSize = position - cdOffset;
+		if (position > ZIP32_LIMIT) {
+			throw new ZipException("Archive too large, Zip64 archives are not supported");
+		}
+
+		byte[] archiveComment = comment != null ? comment : new byte[0];
+		ByteBuffer eocd = ByteBuffer.allocate(EOCD_LENGTH + archiveComment.length).order(ByteOrder.LITTLE_ENDIAN);
+		eocd.putInt(EOCD_SIG);
+		eocd.putShort((short) 0); // number of this disk
+		eocd.putShort((short) 0); // disk with the central directory
+		eocd.putShort((short) entries.size());
+		eocd.putShort((short) entries.size());
+		eocd.putInt((int) cdSize);
+		eocd.putInt((int) cdOffset);
+		eocd.putShort((short) archiveComment.length);
+		eocd.put(archiveComment);
+		writeOut(eocd.array(), 0, eocd.position());
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void closeEntry() throws ZipException {
+		if (current == null) {
+			return;
+		}
+		long written = position - currentDataStart;
+		if (written != current.getCompressedSize()) {
+			throw new ZipException("Entry " + current.getName() + " should be " + current.getCompressedSize() + " bytes but were written " + written + " bytes");
+		}
+		if (position > ZIP32_LIMIT) {
+			throw new ZipException("Archive too large, Zip64 archives are not supported");
+		}
+		entries.add(current);
+		current = null;
+	}
+
+	private void writeOut(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		position += len;
+	}
+}
@@ -21,6 +21,8 @@ import java.util.Iterator;
 
 public final class StringUtils {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	private StringUtils() {
 	}
 
@@ -48,4 +50,13 @@ public final class StringUtils {
 	public static boolean isBlank(String value) {
 		return value == null || "".equals(value.trim());
 	}
+
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
 }
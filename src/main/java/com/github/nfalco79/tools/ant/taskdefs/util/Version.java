@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+/**
+ * An OSGi version made of major, minor and micro numbers and a qualifier.
+ * <p>
+ * Versions are immutable and parsed once: the same string gives the same
+ * instance, so the versions of many bundles share memory. Comparison works
+ * on the numeric fields and never allocates.
+ */
+public final class Version implements Comparable<Version> {
+	/** The version 0.0.0, used when a version is not specified. */
+	public static final Version EMPTY = new Version(0, 0, 0, "");
+
+	/** The parsed versions, the least recently used are evicted. */
+	private static final LRUCache<String, Version> CACHE = new LRUCache<String, Version>(16384);
+
+	private final int major;
+	private final int minor;
+	private final int micro;
+	private final String qualifier;
+	private String canonical;
+
+	/**
+	 * Creates a version.
+	 *
+	 * @param major
+	 *            the major number
+	 * @param minor
+	 *            the minor number
+	 * @param micro
+	 *            the micro number
+	 * @param qualifier
+	 *            the qualifier, made of letters, digits, {@code _} and
+	 *            {@code -}, may be {@code null} or empty
+	 * @throws IllegalArgumentException
+	 *             if a number is negative or the qualifier is not valid
+	 */
+	public Version(int major, int minor, int micro, String qualifier) {
+		if (major < 0 || minor < 0 || micro < 0) {
+			throw new IllegalArgumentException("Negative version number");
+		}
+		this.major = major;
+		this.minor = minor;
+		this.micro = micro;
+		this.qualifier = qualifier != null ? qualifier : "";
+		for (int i = 0; i < this.qualifier.length(); i++) {
+			if (!isQualifierChar(this.qualifier.charAt(i))) {
+				throw new IllegalArgumentException("Invalid qualifier \"" + qualifier + "\"");
+			}
+		}
+	}
+
+	private static boolean isQualifierChar(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '-';
+	}
+
+	/**
+	 * Parses a version in the format
+	 * {@code major[.minor[.micro[.qualifier]]]}. Parsed versions are cached.
+	 *
+	 * @param version
+	 *            the version to parse
+	 * @return the parsed version, {@link #EMPTY} if the given one is
+	 *         {@code null} or blank
+	 * @throws IllegalArgumentException
+	 *             if the version format is not valid
+	 */
+	public static Version parseVersion(String version) {
+		if (version == null) {
+			return EMPTY;
+		}
+		Version result = CACHE.get(version);
+		if (result == null) {
+			result = CACHE.putIfAbsent(version, parse(version.trim()));
+		}
+		return result;
+	}
+
+	private static Version parse(String version) {
+		if (version.isEmpty()) {
+			return EMPTY;
+		}
+
+		int[] numbers = new int[3];
+		int start = 0;
+		for (int i = 0; i < numbers.length; i++) {
+			int end = version.indexOf('.', start);
+			if (end == -1) {
+				end = version.length();
+			}
+			numbers[i] = parseNumber(version, start, end);
+			start = end + 1;
+			if (start > version.length()) {
+				return new Version(numbers[0], numbers[1], numbers[2], "");
+			}
+		}
+		if (start == version.length()) {
+			// a trailing dot without qualifier
+			throw new IllegalArgumentException("Invalid version \"" + version + "\"");
+		}
+		try {
+			return new Version(numbers[0], numbers[1], numbers[2], version.substring(start));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid version \"" + version + "\"", e);
+		}
+	}
+
+	private static int parseNumber(String version, int start, int end) {
+		if (start == end || end - start > 9) {
+			throw new IllegalArgumentException("Invalid version \"" + version + "\"");
+		}
+		int number = 0;
+		for (int i = start; i < end; i++) {
+			char c = version.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new IllegalArgumentException("Invalid version \"" + version + "\"");
+			}
+			number = number * 10 + (c - '0');
+		}
+		return number;
+	}
+
+	public int getMajor() {
+		return major;
+	}
+
+	public int getMinor() {
+		return minor;
+	}
+
+	public int getMicro() {
+		return micro;
+	}
+
+	public String getQualifier() {
+		return qualifier;
+	}
+
+	@Override
+	public int compareTo(Version other) {
+		if (major != other.major) {
+			return major < other.major ? -1 : 1;
+		}
+		if (minor != other.minor) {
+			return minor < other.minor ? -1 : 1;
+		}
+		if (micro != other.micro) {
+			return micro < other.micro ? -1 : 1;
+		}
+		return qualifier.compareTo(other.qualifier);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Version)) {
+			return false;
+		}
+		Version other = (Version) obj;
+		return major == other.major && minor == other.minor && micro == other.micro && qualifier.equals(other.qualifier);
+	}
+
+	@Override
+	public int hashCode() {
+		return ((major * 31 + minor) * 31 + micro) * 31 + qualifier.hashCode();
+	}
+
+	/**
+	 * Returns the canonical format of this version, with all numbers and the
+	 * qualifier only if not empty, as {@code 1.0.0} for {@code 1.0}.
+	 */
+	@Override
+	public String toString() {
+		String result = canonical;
+		if (result == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(major).append('.').append(minor).append('.').append(micro);
+			if (!qualifier.isEmpty()) {
+				sb.append('.').append(qualifier);
+			}
+			// the same string is computed by concurrent threads
+			canonical = result = sb.toString();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+/**
+ * An OSGi version range like {@code [1.0,2.0)}. A single version stands for
+ * all versions greater than or equal to it.
+ * <p>
+ * Ranges are immutable and parsed once, testing if a version is in a range
+ * never allocates.
+ */
+public final class VersionRange {
+	/** The range that includes any version. */
+	public static final VersionRange ANY = new VersionRange(Version.EMPTY, true, null, false);
+
+	/** The parsed ranges, the least recently used are evicted. */
+	private static final LRUCache<String, VersionRange> CACHE = new LRUCache<String, VersionRange>(4096);
+
+	private final Version left;
+	private final boolean leftClosed;
+	private final Version right;
+	private final boolean rightClosed;
+
+	public VersionRange(Version left, boolean leftClosed, Version right, boolean rightClosed) {
+		this.left = left;
+		this.leftClosed = leftClosed;
+		this.right = right;
+		this.rightClosed = rightClosed;
+	}
+
+	/**
+	 * Parses a version range. Parsed ranges are cached.
+	 *
+	 * @param range
+	 *            the range to parse
+	 * @return the parsed range, {@link #ANY} if the given one is {@code null}
+	 *         or blank
+	 * @throws IllegalArgumentException
+	 *             if the range format is not valid
+	 */
+	public static VersionRange parseRange(String range) {
+		if (range == null) {
+			return ANY;
+		}
+		VersionRange result = CACHE.get(range);
+		if (result == null) {
+			result = CACHE.putIfAbsent(range, parse(range.trim()));
+		}
+		return result;
+	}
+
+	private static VersionRange parse(String range) {
+		if (range.isEmpty()) {
+			return ANY;
+		}
+
+		char first = range.charAt(0);
+		if (first != '[' && first != '(') {
+			return new VersionRange(Version.parseVersion(range), true, null, false);
+		}
+
+		char last = range.charAt(range.length() - 1);
+		int comma = range.indexOf(',');
+		if ((last != ']' && last != ')') || comma == -1) {
+			throw new IllegalArgumentException("Invalid version range \"" + range + "\"");
+		}
+		return new VersionRange(Version.parseVersion(range.substring(1, comma)), first == '[', //
+				Version.parseVersion(range.substring(comma + 1, range.length() - 1)), last == ']');
+	}
+
+	/**
+	 * Tests if the given version is in this range.
+	 *
+	 * @param version
+	 *            the version to test
+	 * @return true if the version is in this range
+	 */
+	public boolean includes(Version version) {
+		int c = left.compareTo(version);
+		if (c > 0 || (c == 0 && !leftClosed)) {
+			return false;
+		}
+		if (right == null) {
+			return true;
+		}
+		c = right.compareTo(version);
+		return c > 0 || (c == 0 && rightClosed);
+	}
+
+	public Version getLeft() {
+		return left;
+	}
+
+	public Version getRight() {
+		return right;
+	}
+
+	public boolean isLeftClosed() {
+		return leftClosed;
+	}
+
+	public boolean isRightClosed() {
+		return rightClosed;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof VersionRange)) {
+			return false;
+		}
+		VersionRange other = (VersionRange) obj;
+		return leftClosed == other.leftClosed && rightClosed == other.rightClosed && left.equals(other.left) //
+				&& (right == null ? other.right == null : right.equals(other.right));
+	}
+
+	@Override
+	public int hashCode() {
+		return (left.hashCode() * 31 + (right != null ? right.hashCode() : 0)) * 4 + (leftClosed ? 2 : 0) + (rightClosed ? 1 : 0);
+	}
+
+	/**
+	 * Returns the canonical format of this range.
+	 */
+	@Override
+	public String toString() {
+		if (right == null) {
+			return left.toString();
+		}
+		return (leftClosed ? "[" : "(") + left + "," + right + (rightClosed ? "]" : ")");
+	}
+}
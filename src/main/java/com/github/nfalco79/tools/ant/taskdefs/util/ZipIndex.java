@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a zip archive.
+ * <p>
+ * Gives random access to the raw (still compressed) data of each entry
+ * without inflating anything. Zip64 archives are not supported.
+ */
+public final class ZipIndex {
+	static final int LFH_SIG = 0x04034b50;
+	static final int CFH_SIG = 0x02014b50;
+	static final int EOCD_SIG = 0x06054b50;
+	static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+	static final int LFH_LENGTH = 30;
+	static final int CFH_LENGTH = 46;
+	static final int EOCD_LENGTH = 22;
+	static final int UTF8_FLAG = 1 << 11;
+	static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+	static final int ENCRYPTED_FLAG = 1;
+	static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+	/** 1980-01-01 00:00:00, the lowest time of a zip entry. */
+	static final int MIN_DOS_TIME = (1 << 21) | (1 << 16);
+	/** Unix directory with rwxr-xr-x permissions and the MS-DOS directory flag. */
+	static final long DIR_ATTRIBUTES = (040755L << 16) | 0x10;
+	/** Unix regular file with rw-r--r-- permissions. */
+	static final long FILE_ATTRIBUTES = 0100644L << 16;
+	static final byte[] EMPTY = new byte[0];
+
+	/** The compression method of stored entries. */
+	public static final int STORED = 0;
+	/** The compression method of deflated entries. */
+	public static final int DEFLATED = 8;
+
+	/**
+	 * A central directory record.
+	 */
+	public static final class Entry implements Cloneable {
+		private String name;
+		private byte[] rawName;
+		private int versionMadeBy;
+		private int versionNeeded;
+		private int flags;
+		private int method;
+		private int dosTime;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private byte[] extra;
+		private byte[] comment;
+		private int internalAttributes;
+		private long externalAttributes;
+		private long localHeaderOffset;
+		private byte[] localExtra;
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getRawName() {
+			return rawName;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		public boolean isEncrypted() {
+			return (flags & ENCRYPTED_FLAG) != 0;
+		}
+
+		public int getVersionMadeBy() {
+			return versionMadeBy;
+		}
+
+		public int getVersionNeeded() {
+			return versionNeeded;
+		}
+
+		void setVersionNeeded(int versionNeeded) {
+			this.versionNeeded = versionNeeded;
+		}
+
+		public int getFlags() {
+			return flags;
+		}
+
+		void setFlags(int flags) {
+			this.flags = flags;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		void setMethod(int method) {
+			this.method = method;
+		}
+
+		public int getDosTime() {
+			return dosTime;
+		}
+
+		void setDosTime(int dosTime) {
+			this.dosTime = dosTime;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		void setCrc(long crc) {
+			this.crc = crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		void setCompressedSize(long compressedSize) {
+			this.compressedSize = compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		void setSize(long size) {
+			this.size = size;
+		}
+
+		public byte[] getExtra() {
+			return extra;
+		}
+
+		void setExtra(byte[] extra) {
+			this.extra = extra;
+		}
+
+		public byte[] getComment() {
+			return comment;
+		}
+
+		public int getInternalAttributes() {
+			return internalAttributes;
+		}
+
+		public long getExternalAttributes() {
+			return externalAttributes;
+		}
+
+		void setExternalAttributes(long externalAttributes) {
+			this.externalAttributes = externalAttributes;
+		}
+
+		public long getLocalHeaderOffset() {
+			return localHeaderOffset;
+		}
+
+		void setLocalHeaderOffset(long localHeaderOffset) {
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		/**
+		 * Returns the extra field of the local file header, only available
+		 * after {@link ZipIndex#getDataOffset(Entry)} has been called.
+		 *
+		 * @return the local extra field
+		 */
+		public byte[] getLocalExtra() {
+			return localExtra;
+		}
+
+		void setLocalExtra(byte[] localExtra) {
+			this.localExtra = localExtra;
+		}
+
+		@Override
+		public Entry clone() {
+			try {
+				return (Entry) super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	private final Map<String, Entry> entriesByName;
+	private final byte[] comment;
+
+	private ZipIndex(FileChannel channel, List<Entry> entries, byte[] comment) {
+		this.channel = channel;
+		this.entries = Collections.unmodifiableList(entries);
+		this.entriesByName = new HashMap<String, Entry>(entries.size() * 4 / 3 + 1);
+		for (Entry entry : entries) {
+			if (!entriesByName.containsKey(entry.name)) {
+				entriesByName.put(entry.name, entry);
+			}
+		}
+		this.comment = comment;
+	}
+
+	/**
+	 * Reads the central directory of the archive accessible through the
+	 * given channel.
+	 *
+	 * @param channel
+	 *            the archive channel, it is not closed by this class
+	 * @param encoding
+	 *            the charset of entry names without the UTF-8 flag
+	 * @return the archive index
+	 * @throws IOException
+	 *             if the archive is not a valid zip or uses Zip64 extensions
+	 */
+	public static ZipIndex read(FileChannel channel, Charset encoding) throws IOException {
+		long length = channel.size();
+		if (length < EOCD_LENGTH) {
+			throw new ZipException("Archive is too short");
+		}
+
+		// the end of central directory is followed by a comment of at most 64KB
+		int tailLength = (int) Math.min(length, EOCD_LENGTH + 0xFFFF);
+		ByteBuffer tail = read(channel, length - tailLength, tailLength);
+		int eocd = -1;
+		for (int i = tailLength - EOCD_LENGTH; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIG) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			throw new ZipException("End of central directory not found");
+		}
+		if (eocd >= 20 && tail.getInt(eocd - 20) == ZIP64_EOCD_LOCATOR_SIG) {
+			throw new ZipException("Zip64 archives are not supported");
+		}
+
+		int count = tail.getShort(eocd + 10) & 0xFFFF;
+		long cdSize = tail.getInt(eocd + 12) & ZIP32_LIMIT;
+		long cdOffset = tail.getInt(eocd + 16) & ZIP32_LIMIT;
+		byte[] comment = new byte[tail.getShort(eocd + 20) & 0xFFFF];
+		tail.position(eocd + EOCD_LENGTH);
+		tail.get(comment, 0, Math.min(comment.length, tail.remaining()));
+
+		ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+		List<Entry> entries = new ArrayList<Entry>(count);
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (cd.getInt(position) != CFH_SIG) {
+				throw new ZipException("Invalid central directory header");
+			}
+			Entry entry = new Entry();
+			entry.versionMadeBy = cd.getShort(position + 4) & 0xFFFF;
+			entry.versionNeeded = cd.getShort(position + 6) & 0xFFFF;
+			entry.flags = cd.getShort(position + 8) & 0xFFFF;
+			entry.method = cd.getShort(position + 10) & 0xFFFF;
+			entry.dosTime = cd.getInt(position + 12);
+			entry.crc = cd.getInt(position + 16) & ZIP32_LIMIT;
+			entry.compressedSize = cd.getInt(position + 20) & ZIP32_LIMIT;
+			entry.size = cd.getInt(position + 24) & ZIP32_LIMIT;
+			int nameLength = cd.getShort(position + 28) & 0xFFFF;
+			int extraLength = cd.getShort(position + 30) & 0xFFFF;
+			int commentLength = cd.getShort(position + 32) & 0xFFFF;
+			entry.internalAttributes = cd.getShort(position + 36) & 0xFFFF;
+			entry.externalAttributes = cd.getInt(position + 38) & ZIP32_LIMIT;
+			entry.localHeaderOffset = cd.getInt(position + 42) & ZIP32_LIMIT;
+			if (entry.compressedSize == ZIP32_LIMIT || entry.size == ZIP32_LIMIT || entry.localHeaderOffset == ZIP32_LIMIT) {
+				throw new ZipException("Zip64 archives are not supported");
+			}
+
+			position += CFH_LENGTH;
+			entry.rawName = new byte[nameLength];
+			cd.position(position);
+			cd.get(entry.rawName);
+			entry.extra = new byte[extraLength];
+			cd.get(entry.extra);
+			entry.comment = new byte[commentLength];
+			cd.get(entry.comment);
+			position += nameLength + extraLength + commentLength;
+
+			Charset charset = (entry.flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : encoding;
+			entry.name = new String(entry.rawName, charset);
+			entries.add(entry);
+		}
+		return new ZipIndex(channel, entries, comment);
+	}
+
+	/**
+	 * Returns all entries in central directory order, duplicates included.
+	 *
+	 * @return the archive entries
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the first entry with the given name.
+	 *
+	 * @param name
+	 *            the entry name
+	 * @return the entry or {@code null} if not found
+	 */
+	public Entry getEntry(String name) {
+		return entriesByName.get(name);
+	}
+
+	public byte[] getComment() {
+		return comment;
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the position of the entry data in the archive and reads the
+	 * extra field of its local file header.
+	 *
+	 * @param entry
+	 *            an entry of this archive
+	 * @return the absolute position of the entry data
+	 * @throws IOException
+	 *             if the local file header is invalid
+	 */
+	public long getDataOffset(Entry entry) throws IOException {
+		ByteBuffer lfh = read(channel, entry.localHeaderOffset, LFH_LENGTH);
+		if (lfh.getInt(0) != LFH_SIG) {
+			throw new ZipException("Invalid local file header for " + entry.name);
+		}
+		int nameLength = lfh.getShort(26) & 0xFFFF;
+		int extraLength = lfh.getShort(28) & 0xFFFF;
+		long dataOffset = entry.localHeaderOffset + LFH_LENGTH + nameLength;
+		ByteBuffer extra = read(channel, dataOffset, extraLength);
+		entry.localExtra = new byte[extraLength];
+		extra.get(entry.localExtra);
+		return dataOffset + extraLength;
+	}
+
+	/**
+	 * Reads the raw data of an entry, the bytes are still compressed if the
+	 * entry is not stored.
+	 *
+	 * @param dataOffset
+	 *            the position returned by {@link #getDataOffset(Entry)}
+	 * @param buffer
+	 *            where data is read
+	 * @param position
+	 *            the position relative to the entry data
+	 * @return the number of read bytes
+	 * @throws IOException
+	 *             in case of I/O errors
+	 */
+	public int read(long dataOffset, ByteBuffer buffer, long position) throws IOException {
+		return channel.read(buffer, dataOffset + position);
+	}
+
+	/**
+	 * Converts a Java time to the MS-DOS format used in zip entries, in the
+	 * default time zone.
+	 *
+	 * @param time
+	 *            the time in milliseconds
+	 * @return the MS-DOS date and time
+	 */
+	static int toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return MIN_DOS_TIME;
+		}
+		return (year - 1980) << 25 //
+				| (calendar.get(Calendar.MONTH) + 1) << 21 //
+				| calendar.get(Calendar.DAY_OF_MONTH) << 16 //
+				| calendar.get(Calendar.HOUR_OF_DAY) << 11 //
+				| calendar.get(Calendar.MINUTE) << 5 //
+				| calendar.get(Calendar.SECOND) >> 1;
+	}
+
+	static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+import org.apache.tools.ant.util.FileUtils;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.DeflatePolicy.Decision;
+import com.github.nfalco79.tools.ant.taskdefs.util.ZipIndex.Entry;
+
+/**
+ * Rewrites a zip archive deflating its stored entries concurrently.
+ * <p>
+ * Entries can also be replaced by the raw data of entries of other archives,
+ * copied without inflating and deflating them again.
+ * <p>
+ * Each stored entry is compressed by a worker into a memory buffer, or a
+ * temporary file for big entries, and the results are assembled in the
+ * original entry order. The CRC of the entries is taken from the source
+ * archive, entries that are already compressed or that do not shrink are
+ * copied as they are.
+ * <p>
+ * When normalization is enabled entries are sorted by name and their time,
+ * permissions and extra fields are replaced with fixed values, so that the
+ * same content always gives the same bytes.
+ */
+public class ZipRewriter {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int SPILL_THRESHOLD = 8 * 1024 * 1024;
+	/** Room for the extra fields and data descriptor of an entry. */
+	private static final int MAX_EXTRA_LENGTH = 128;
+
+	private final ExecutorService executor;
+	private final int parallelism;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private Charset encoding = StandardCharsets.UTF_8;
+	private DeflatePolicy policy;
+	private boolean deflate = true;
+	private Map<String, RawSource> rawSources = Collections.emptyMap();
+	private boolean normalize;
+	private int normalizedTime = ZipIndex.MIN_DOS_TIME;
+
+	/**
+	 * An entry of another archive whose compressed data replaces an entry of
+	 * the rewritten archive.
+	 */
+	public static final class RawSource {
+		private final File archive;
+		private final String entryName;
+
+		public RawSource(File archive, String entryName) {
+			this.archive = archive;
+			this.entryName = entryName;
+		}
+
+		public File getArchive() {
+			return archive;
+		}
+
+		public String getEntryName() {
+			return entryName;
+		}
+	}
+
+	/**
+	 * Creates a rewriter that compresses entries with the given executor.
+	 *
+	 * @param executor
+	 *            the executor that runs the compression
+	 * @param parallelism
+	 *            the number of threads of the executor, used to bound the
+	 *            entries buffered in memory
+	 */
+	public ZipRewriter(ExecutorService executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the deflate compression level.
+	 *
+	 * @param level
+	 *            the compression level, -1 for the default
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Sets the policy that selects the entries worth to deflate, by default
+	 * all stored entries are deflated.
+	 *
+	 * @param policy
+	 *            the deflate policy
+	 */
+	public void setDeflatePolicy(DeflatePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets if stored entries must be deflated, default is {@code true}.
+	 *
+	 * @param deflate
+	 *            {@code false} to copy all entries as they are
+	 */
+	public void setDeflate(boolean deflate) {
+		this.deflate = deflate;
+	}
+
+	/**
+	 * Sets the entries whose data must be copied, still compressed, from
+	 * other archives. The rewritten archive keeps name, time, permissions and
+	 * extra fields of the replaced entry, method, CRC and sizes come from the
+	 * source entry.
+	 *
+	 * @param rawSources
+	 *            the source entries by name of the replaced entry
+	 */
+	public void setRawSources(Map<String, RawSource> rawSources) {
+		this.rawSources = rawSources;
+	}
+
+	/**
+	 * Sets if the entries must be sorted by name and time, permissions and
+	 * extra fields replaced with fixed values.
+	 *
+	 * @param normalize
+	 *            {@code true} to normalize the archive entries
+	 */
+	public void setNormalize(boolean normalize) {
+		this.normalize = normalize;
+	}
+
+	/**
+	 * Sets the time given to all entries when they are normalized, default
+	 * is the lowest time a zip entry can have (1980-01-01 00:00:00).
+	 *
+	 * @param time
+	 *            the entries time in milliseconds
+	 */
+	public void setNormalizedTime(long time) {
+		this.normalizedTime = ZipIndex.toDosTime(time);
+	}
+
+	/**
+	 * Sets the encoding of entry names without the UTF-8 flag.
+	 *
+	 * @param encoding
+	 *            the entry names encoding
+	 */
+	public void setEncoding(Charset encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Returns if an archive with the given entries can be rewritten, the
+	 * rewritten archive and the archive to rewrite must not need the Zip64
+	 * extensions.
+	 *
+	 * @param entries
+	 *            the number of entries
+	 * @param size
+	 *            the total size of the entries data, the larger between
+	 *            stored and compressed
+	 * @param namesLength
+	 *            the total length of the entry names
+	 * @return {@code true} if the archive fits the zip limits
+	 */
+	public static boolean isRewritable(long entries, long size, long namesLength) {
+		// local and central headers with their extra fields, end of central
+		// directory
+		long overhead = entries * (ZipIndex.LFH_LENGTH + ZipIndex.CFH_LENGTH + MAX_EXTRA_LENGTH) + namesLength * 2 + ZipIndex.EOCD_LENGTH;
+		return entries < 0xFFFF && size + overhead <= ZipIndex.ZIP32_LIMIT;
+	}
+
+	/**
+	 * Rewrites the given archive in place.
+	 *
+	 * @param archive
+	 *            the archive to rewrite
+	 * @throws IOException
+	 *             in case of I/O errors, the original archive is left
+	 *             untouched
+	 */
+	public void rewrite(File archive) throws IOException {
+		File tmpFile = File.createTempFile(archive.getName(), ".tmp", archive.getAbsoluteFile().getParentFile());
+		boolean success = false;
+		FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+		try {
+			ZipIndex index = ZipIndex.read(channel, encoding);
+			RawZipWriter writer = new RawZipWriter(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+			try {
+				write(index, writer);
+				writer.finish(index.getComment());
+			} finally {
+				writer.close();
+			}
+			success = true;
+		} finally {
+			channel.close();
+			if (!success) {
+				tmpFile.delete();
+			}
+		}
+		Files.move(tmpFile.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns if the given entry must be deflated.
+	 *
+	 * @param entry
+	 *            an entry of the source archive
+	 * @return {@code true} if the entry is stored and not empty
+	 */
+	protected boolean isDeflatable(Entry entry) {
+		return deflate && entry.getMethod() == ZipIndex.STORED && entry.getSize() > 0 && !entry.isDirectory() && !entry.isEncrypted();
+	}
+
+	private void write(ZipIndex index, RawZipWriter writer) throws IOException {
+		Deque<Pending> window = new ArrayDeque<Pending>();
+		Map<File, ZipIndex> sources = new HashMap<File, ZipIndex>();
+		try {
+			List<Entry> entries = index.getEntries();
+			if (normalize) {
+				// stable sort, duplicates keep their relative order
+				entries = new ArrayList<Entry>(entries);
+				Collections.sort(entries, new Comparator<Entry>() {
+					@Override
+					public int compare(Entry e1, Entry e2) {
+						return e1.getName().compareTo(e2.getName());
+					}
+				});
+			}
+			for (Entry entry : entries) {
+				Pending pending;
+				// only the empty placeholders are replaced, not their duplicates
+				RawSource rawSource = entry.getSize() == 0 && entry.getMethod() == ZipIndex.STORED ? rawSources.get(entry.getName()) : null;
+				if (rawSource != null) {
+					ZipIndex source = getSource(sources, rawSource.getArchive());
+					Entry sourceEntry = source.getEntry(rawSource.getEntryName());
+					if (sourceEntry == null || sourceEntry.isEncrypted()) {
+						throw new ZipException("Can not copy " + rawSource.getEntryName() + " from " + rawSource.getArchive());
+					}
+					pending = new Pending(entry, source, sourceEntry, source.getDataOffset(sourceEntry));
+				} else {
+					pending = new Pending(entry, index, entry, index.getDataOffset(entry));
+				}
+				window.add(pending);
+				if (rawSource == null && isDeflatable(entry)) {
+					Decision decision = policy != null ? policy.decide(entry.getName()) : Decision.DEFLATE;
+					if (decision == Decision.STORE) {
+						policy.recordStored(entry.getSize());
+					} else {
+						pending.deflated = executor.submit(deflate(index, pending, decision == Decision.SAMPLE));
+					}
+				}
+				if (window.size() >= parallelism * 2) {
+					write(window.poll(), writer);
+				}
+			}
+			while (!window.isEmpty()) {
+				write(window.poll(), writer);
+			}
+		} finally {
+			for (ZipIndex source : sources.values()) {
+				FileUtils.close(source.getChannel());
+			}
+			for (Pending pending : window) {
+				if (pending.deflated != null && !pending.deflated.cancel(true)) {
+					try {
+						ScatterBuffer buffer = pending.deflated.get();
+						if (buffer != null) {
+							buffer.dispose();
+						}
+					} catch (Exception e) {
+						// already failed
+					}
+				}
+			}
+		}
+	}
+
+	private ZipIndex getSource(Map<File, ZipIndex> sources, File archive) throws IOException {
+		ZipIndex source = sources.get(archive);
+		if (source == null) {
+			FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+			try {
+				source = ZipIndex.read(channel, encoding);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			sources.put(archive, source);
+		}
+		return source;
+	}
+
+	private void write(Pending pending, RawZipWriter writer) throws IOException {
+		Entry entry = pending.entry.clone();
+		ScatterBuffer buffer = pending.deflated != null ? get(pending.deflated) : null;
+		if (buffer == null) {
+			Entry source = pending.source;
+			if (source != pending.entry) {
+				entry.setMethod(source.getMethod());
+				entry.setCrc(source.getCrc());
+				entry.setCompressedSize(source.getCompressedSize());
+				entry.setSize(source.getSize());
+				entry.setVersionNeeded(Math.max(source.getVersionNeeded(), entry.getVersionNeeded()));
+			}
+			putEntry(entry, writer);
+			copy(pending.index, pending.dataOffset, source.getCompressedSize(), writer);
+			return;
+		}
+
+		try {
+			entry.setMethod(ZipIndex.DEFLATED);
+			entry.setVersionNeeded(Math.max(20, entry.getVersionNeeded()));
+			entry.setCompressedSize(buffer.size());
+			putEntry(entry, writer);
+			buffer.writeTo(writer);
+		} finally {
+			buffer.dispose();
+		}
+	}
+
+	private void putEntry(Entry entry, RawZipWriter writer) throws IOException {
+		if (normalize) {
+			entry.setDosTime(normalizedTime);
+			entry.setExternalAttributes(entry.isDirectory() ? ZipIndex.DIR_ATTRIBUTES : ZipIndex.FILE_ATTRIBUTES);
+			entry.setExtra(ZipIndex.EMPTY);
+			entry.setLocalExtra(ZipIndex.EMPTY);
+			// the same whoever compressed the entry
+			entry.setVersionNeeded(entry.getMethod() == ZipIndex.DEFLATED ? 20 : 10);
+		}
+		writer.putEntry(entry);
+	}
+
+	/**
+	 * Copies raw entry data from an archive into the writer.
+	 *
+	 * @param index
+	 *            the source archive
+	 * @param dataOffset
+	 *            the position of the entry data
+	 * @param length
+	 *            the number of bytes to copy
+	 * @param writer
+	 *            the destination archive
+	 * @throws IOException
+	 *             in case of I/O errors
+	 */
+	protected static void copy(ZipIndex index, long dataOffset, long length, RawZipWriter writer) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+		long position = 0;
+		while (position < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - position));
+			int read = index.read(dataOffset, buffer, position);
+			if (read == -1) {
+				throw new IOException("Unexpected end of archive");
+			}
+			writer.write(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	private Callable<ScatterBuffer> deflate(final ZipIndex index, final Pending pending, final boolean sample) {
+		return new Callable<ScatterBuffer>() {
+			@Override
+			public ScatterBuffer call() throws IOException {
+				long start = DeflatePolicy.cpuTime();
+				long size = pending.entry.getSize();
+				ScatterBuffer buffer = new ScatterBuffer((int) Math.min(size, SPILL_THRESHOLD));
+				Deflater deflater = new Deflater(level, true);
+				boolean keep = false;
+				try {
+					DeflaterOutputStream dos = new DeflaterOutputStream(buffer, deflater, BUFFER_SIZE);
+					ByteBuffer data = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, size));
+					long position = 0;
+					while (position < size) {
+						data.clear();
+						data.limit((int) Math.min(data.capacity(), size - position));
+						int read = index.read(pending.dataOffset, data, position);
+						if (read == -1) {
+							throw new IOException("Unexpected end of archive reading " + pending.entry.getName());
+						}
+						if (sample && position == 0) {
+							if (!policy.isCompressible(data.array(), read)) {
+								policy.recordStored(size);
+								return null;
+							}
+							// only the final deflate is recorded
+							start = DeflatePolicy.cpuTime();
+						}
+						dos.write(data.array(), 0, read);
+						position += read;
+					}
+					dos.finish();
+					dos.close();
+					if (policy != null) {
+						policy.recordDeflated(size, DeflatePolicy.cpuTime() - start);
+					}
+					// not worth it, keep the entry stored
+					keep = buffer.size() < size;
+					return keep ? buffer : null;
+				} finally {
+					deflater.end();
+					if (!keep) {
+						buffer.dispose();
+					}
+				}
+			}
+		};
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static final class Pending {
+		private final Entry entry;
+		private final ZipIndex index;
+		private final Entry source;
+		private final long dataOffset;
+		private Future<ScatterBuffer> deflated;
+
+		private Pending(Entry entry, ZipIndex index, Entry source, long dataOffset) {
+			this.entry = entry;
+			this.index = index;
+			this.source = source;
+			this.dataOffset = dataOffset;
+		}
+	}
+
+	/**
+	 * Output buffer kept in memory until it grows over a threshold, then
+	 * spilled to a temporary file.
+	 */
+	private static final class ScatterBuffer extends OutputStream {
+		private ByteArrayOutputStream memory;
+		private File file;
+		private OutputStream fileStream;
+		private long size;
+
+		private ScatterBuffer(int initialSize) {
+			memory = new ByteArrayOutputStream(Math.max(32, initialSize / 2));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (memory != null && memory.size() + len > SPILL_THRESHOLD) {
+				file = File.createTempFile("deflate", ".tmp");
+				fileStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+				memory.writeTo(fileStream);
+				memory = null;
+			}
+			if (memory != null) {
+				memory.write(b, off, len);
+			} else {
+				fileStream.write(b, off, len);
+			}
+			size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (fileStream != null) {
+				fileStream.close();
+			}
+		}
+
+		private long size() {
+			return size;
+		}
+
+		private void writeTo(RawZipWriter writer) throws IOException {
+			if (memory != null) {
+				byte[] data = memory.toByteArray();
+				writer.write(data, 0, data.length);
+				return;
+			}
+			InputStream is = new FileInputStream(file);
+			try {
+				byte[] data = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = is.read(data)) != -1) {
+					writer.write(data, 0, read);
+				}
+			} finally {
+				FileUtils.close(is);
+			}
+		}
+
+		private void dispose() {
+			memory = null;
+			FileUtils.close(fileStream);
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.tools.ant.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.nfalco79.tools.ant.taskdefs.BundleInfo.ContentType;
+
+public class BundleInfoCacheTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("bundlecache").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File file : dir.listFiles()) {
+			FileUtils.delete(file);
+		}
+		FileUtils.delete(dir);
+	}
+
+	private File createFile(String name) throws Exception {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private BundleInfo createBundleInfo(String name, String... exportPackage) {
+		BundleInfo bundleInfo = new BundleInfo();
+		bundleInfo.setType(ContentType.bundle);
+		bundleInfo.setName(name);
+		bundleInfo.setVersion("1.0.0");
+		bundleInfo.setExportPackage(exportPackage);
+		return bundleInfo;
+	}
+
+	@Test
+	public void cache_stores_values_longer_than_64KB() throws Exception {
+		File bundle = createFile("bundle.jar");
+		StringBuilder uses = new StringBuilder("com.example.api;uses:=\"");
+		for (int i = 0; i < 10000; i++) {
+			uses.append(i > 0 ? "," : "").append("com.example.pkg").append(i);
+		}
+		uses.append('"');
+
+		BundleInfoCache cache = new BundleInfoCache(dir, false);
+		cache.put(bundle, createBundleInfo("com.example.bundle", uses.toString()));
+		cache.save();
+
+		cache = new BundleInfoCache(dir, false);
+		cache.load();
+		BundleInfo bundleInfo = cache.get(bundle);
+		assertNotNull(bundleInfo);
+		assertEquals("com.example.bundle", bundleInfo.getName());
+		assertArrayEquals(new String[] { uses.toString() }, bundleInfo.getExportPackage());
+	}
+
+	@Test
+	public void corrupted_cache_is_discarded() throws Exception {
+		File bundle = createFile("bundle.jar");
+		BundleInfoCache cache = new BundleInfoCache(dir, false);
+		cache.put(bundle, createBundleInfo("com.example.bundle"));
+		cache.save();
+
+		File cacheFile = new File(dir, "bundleinfo.cache");
+		byte[] content = Files.readAllBytes(cacheFile.toPath());
+		// magic, version, count, path, size, last modified, checksum length
+		int typeOffset = 12 + 4 + bundle.getCanonicalPath().getBytes(StandardCharsets.UTF_8).length + 8 + 8 + 1;
+		content[typeOffset] = (byte) 0xff;
+		Files.write(cacheFile.toPath(), content);
+
+		cache = new BundleInfoCache(dir, false);
+		cache.load();
+		assertNull(cache.get(bundle));
+
+		// truncated
+		Files.write(cacheFile.toPath(), Arrays.copyOf(content, typeOffset));
+		cache = new BundleInfoCache(dir, false);
+		cache.load();
+		assertNull(cache.get(bundle));
+	}
+
+	@Test
+	public void checksum_keeps_touched_bundles() throws Exception {
+		File bundle = createFile("bundle.jar");
+		BundleInfoCache cache = new BundleInfoCache(dir, true);
+		cache.put(bundle, createBundleInfo("com.example.bundle"));
+		cache.save();
+
+		// same content, as after a fresh checkout
+		assertTrue(bundle.setLastModified(bundle.lastModified() - 10000));
+		cache = new BundleInfoCache(dir, true);
+		cache.load();
+		assertNotNull(cache.get(bundle));
+		cache.save();
+
+		// same size, different content
+		Files.write(bundle.toPath(), "BUNDLE.JAR".getBytes(StandardCharsets.UTF_8));
+		assertTrue(bundle.setLastModified(bundle.lastModified() - 20000));
+		cache = new BundleInfoCache(dir, true);
+		cache.load();
+		assertNull(cache.get(bundle));
+	}
+
+	@Test
+	public void caches_sharing_the_directory_merge_their_records() throws Exception {
+		File bundle1 = createFile("bundle1.jar");
+		File bundle2 = createFile("bundle2.jar");
+
+		BundleInfoCache cache1 = new BundleInfoCache(dir, false);
+		cache1.load();
+		BundleInfoCache cache2 = new BundleInfoCache(dir, false);
+		cache2.load();
+		cache1.put(bundle1, createBundleInfo("com.example.bundle1"));
+		cache2.put(bundle2, createBundleInfo("com.example.bundle2"));
+		cache1.save();
+		cache2.save();
+
+		BundleInfoCache cache = new BundleInfoCache(dir, false);
+		cache.load();
+		assertEquals("com.example.bundle1", cache.get(bundle1).getName());
+		assertEquals("com.example.bundle2", cache.get(bundle2).getName());
+	}
+}
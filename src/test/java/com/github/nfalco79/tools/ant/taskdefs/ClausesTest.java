@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.github.nfalco79.tools.ant.taskdefs.util.Version;
+
+public class ClausesTest {
+
+	@Test
+	public void quoted_commas_do_not_split_clauses() throws Exception {
+		Clauses clauses = Clauses.parse("com.example.api;uses:=\"com.example.a,com.example.b\";version=\"1.0\",com.example.impl");
+		assertEquals(2, clauses.size());
+		assertEquals("com.example.api", clauses.getPath(0));
+		assertEquals("com.example.a,com.example.b", clauses.getParameter(0, "uses", true));
+		assertEquals(Version.parseVersion("1.0"), clauses.getVersion(0));
+		assertEquals("com.example.impl", clauses.getPath(1));
+		assertEquals("", clauses.getParameters(1));
+		assertNull(clauses.getVersion(1));
+	}
+
+	@Test
+	public void escaped_quotes_are_part_of_the_value() throws Exception {
+		Clauses clauses = Clauses.parse("com.example;note=\"say \\\"a,b\\\"\",other");
+		assertEquals(2, clauses.size());
+		assertEquals("say \"a,b\"", clauses.getParameter(0, "note", false));
+		assertEquals("other", clauses.getPath(1));
+	}
+
+	@Test
+	public void directives_and_attributes_are_distinct() throws Exception {
+		Clauses clauses = Clauses.parse("com.example;resolution:=optional;mandatory=yes");
+		assertEquals("optional", clauses.getParameter(0, "resolution", true));
+		assertNull(clauses.getParameter(0, "resolution", false));
+		assertEquals("yes", clauses.getParameter(0, "mandatory", false));
+		assertNull(clauses.getParameter(0, "mandatory", true));
+	}
+
+	@Test
+	public void paths_sharing_parameters() throws Exception {
+		Clauses clauses = Clauses.parse("com.example.a;com.example.b;version=2.0.0");
+		assertEquals(2, clauses.size());
+		assertEquals("com.example.a;version=2.0.0", clauses.get(0));
+		assertEquals("com.example.b;version=2.0.0", clauses.get(1));
+		assertSame(clauses.getVersion(0), clauses.getVersion(1));
+		assertArrayEquals(clauses.toArray(), Clauses.of(clauses.toArray()).toArray());
+	}
+
+	@Test
+	public void paths_and_parameters_are_interned() throws Exception {
+		Clauses clauses1 = Clauses.parse(new String("com.example;version=1.0"));
+		Clauses clauses2 = Clauses.parse(new String("com.example;version=1.0"));
+		assertSame(clauses1.getPath(0), clauses2.getPath(0));
+		assertSame(clauses1.getParameters(0), clauses2.getParameters(0));
+	}
+}
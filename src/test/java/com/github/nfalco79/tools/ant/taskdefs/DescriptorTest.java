@@ -47,6 +47,7 @@ public class DescriptorTest {
 		tasks.put("manifestreader", ManifestReader.class);
 		tasks.put("esa", ESA.class);
 		tasks.put("eba", EBA.class);
+		tasks.put("esabatch", ESABatch.class);
 		tasks.put("invokeOperation", InvokeOperation.class);
 		tasks.put("getAttribute", GetAttribute.class);
 		tasks.put("existMBean", ExistMBean.class);
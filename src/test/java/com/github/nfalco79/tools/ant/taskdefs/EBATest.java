@@ -16,22 +16,35 @@
 package com.github.nfalco79.tools.ant.taskdefs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.ops4j.pax.tinybundles.core.TinyBundles.bundle;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Manifest;
 import org.apache.tools.ant.taskdefs.Manifest.Attribute;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.ZipFileSet;
 import org.junit.Test;
 
 import aQute.bnd.osgi.Constants;
@@ -54,13 +67,49 @@ public class EBATest {
 	}
 
 	private File createWebBundle() throws IOException {
-		InputStream is = bundle().add(EBA.class).add(EBATest.class).set(Constants.BUNDLE_MANIFESTVERSION, "2").set(Constants.BUNDLE_VERSION, WAB_VERSION).set(Constants.BUNDLE_SYMBOLICNAME, WAB_SYMBOLICNAME).set(Constants.EXPORT_PACKAGE, EBA.class.getPackage().getName()).set("Web-ContextPath", "/test").build();
-
 		File bundleFile = File.createTempFile("bundle-web", ".jar");
 		bundleFile.deleteOnExit();
+		writeWebBundle(bundleFile, "2", WAB_SYMBOLICNAME, WAB_VERSION, "/test");
+		return bundleFile;
+	}
+
+	private void writeWebBundle(File bundleFile, String manifestVersion, String symbolicName, String version, String contextPath) throws IOException {
+		InputStream is = bundle().add(EBA.class).add(EBATest.class).set(Constants.BUNDLE_MANIFESTVERSION, manifestVersion).set(Constants.BUNDLE_VERSION, version).set(Constants.BUNDLE_SYMBOLICNAME, symbolicName).set(Constants.EXPORT_PACKAGE, EBA.class.getPackage().getName()).set("Web-ContextPath", contextPath).build();
 		FileUtils.copyInputStreamToFile(is, bundleFile);
+	}
 
-		return bundleFile;
+	private EBA createTask(Project project, File ebaFile, File... wabs) throws IOException {
+		EBA task = new EBA();
+		task.setProject(project);
+		task.setDestFile(ebaFile);
+		task.setSymbolicName("org.nfalco.eba.sample");
+		task.setVersion("1.0.0");
+
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(createBundle());
+		task.add(fileSet);
+		for (File wab : wabs) {
+			FileSet wabSet = new FileSet();
+			wabSet.setProject(project);
+			wabSet.setFile(wab);
+			task.addWAB(wabSet);
+		}
+		return task;
+	}
+
+	private String readApplicationContent(File ebaFile) throws Exception {
+		ZipFile zf = new ZipFile(ebaFile);
+		try {
+			InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("META-INF/APPLICATION.MF")), "UTF-8");
+			try {
+				return new Manifest(reader).getMainSection().getAttributeValue(ApplicationConstants.APPLICATION_CONTENT);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			zf.close();
+		}
 	}
 
 	@Test
@@ -195,4 +244,168 @@ public class EBATest {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void eba_raw_copy_of_archive_entries() throws Exception {
+		File bundle = createBundle();
+		byte[] text = new byte[64 * 1024];
+		Random random = new Random(7);
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) ('a' + random.nextInt(4));
+		}
+
+		File source = File.createTempFile("source", ".zip");
+		source.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source));
+		try {
+			// compressed differently from what the task would do
+			zos.setLevel(Deflater.BEST_SPEED);
+			zos.putNextEntry(new ZipEntry("META-INF/APPLICATION.MF"));
+			zos.write("Application-SymbolicName: old.application\r\n".getBytes("UTF-8"));
+			zos.putNextEntry(new ZipEntry("readme.txt"));
+			zos.write(text);
+			zos.putNextEntry(new ZipEntry(bundle.getName()));
+			zos.write(FileUtils.readFileToByteArray(bundle));
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+
+		File ebaFile = File.createTempFile("test_raw", ".eba");
+		ebaFile.delete();
+
+		Project project = AntUtil.createEmptyProject();
+
+		EBA task = new EBA();
+		task.setProject(project);
+		task.setDestFile(ebaFile);
+		task.setSymbolicName("org.nfalco.eba.raw");
+		task.setVersion("1.0.0");
+		task.setRawCopy(true);
+
+		ZipFileSet fileSet = new ZipFileSet();
+		fileSet.setProject(project);
+		fileSet.setSrc(source);
+		task.add(fileSet);
+		try {
+			task.execute();
+
+			ZipFile expected = new ZipFile(source);
+			ZipFile zf = new ZipFile(ebaFile);
+			try {
+				for (String name : new String[] { "readme.txt", bundle.getName() }) {
+					ZipEntry ze = zf.getEntry(name);
+					assertNotNull(ze);
+					assertEquals(expected.getEntry(name).getCompressedSize(), ze.getCompressedSize());
+					assertEquals(expected.getEntry(name).getCrc(), ze.getCrc());
+					assertTrue(Arrays.equals(IOUtils.toByteArray(expected.getInputStream(expected.getEntry(name))), IOUtils.toByteArray(zf.getInputStream(ze))));
+				}
+
+				int manifests = 0;
+				Enumeration<? extends ZipEntry> entries = zf.entries();
+				while (entries.hasMoreElements()) {
+					if ("META-INF/APPLICATION.MF".equals(entries.nextElement().getName())) {
+						manifests++;
+					}
+				}
+				assertEquals(1, manifests);
+
+				InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("META-INF/APPLICATION.MF")));
+				Manifest mf = new Manifest(reader);
+				reader.close();
+
+				Attribute attribute = mf.getMainSection().getAttribute(ApplicationConstants.APPLICATION_SYMBOLIC_NAME);
+				assertEquals("org.nfalco.eba.raw", attribute.getValue());
+				attribute = mf.getMainSection().getAttribute(ApplicationConstants.APPLICATION_CONTENT);
+				assertTrue(attribute.getValue().contains(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\""));
+			} finally {
+				zf.close();
+				expected.close();
+			}
+		} finally {
+			if (!ebaFile.delete()) {
+				ebaFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void eba_several_wabs() throws Exception {
+		File ebaFile = File.createTempFile("test_wabs", ".eba");
+		ebaFile.delete();
+		File wab1 = File.createTempFile("bundle-web", ".jar");
+		wab1.deleteOnExit();
+		writeWebBundle(wab1, "2", "eba.web1", "1.0.0", "/web1");
+		File wab2 = File.createTempFile("bundle-web", ".jar");
+		wab2.deleteOnExit();
+		writeWebBundle(wab2, "2", "eba.web2", "2.0.0", "/web2");
+
+		try {
+			createTask(AntUtil.createEmptyProject(), ebaFile, wab1, wab2).execute();
+
+			String content = readApplicationContent(ebaFile);
+			assertTrue(content, content.contains("eba.web1;version=\"1.0.0\""));
+			assertTrue(content, content.contains("eba.web2;version=\"2.0.0\""));
+			assertTrue(content, content.contains(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\""));
+		} finally {
+			if (!ebaFile.delete()) {
+				ebaFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void eba_failing_wab_analysis_names_the_wab() throws Exception {
+		File ebaFile = File.createTempFile("test_bad_wab", ".eba");
+		ebaFile.delete();
+		File wab = File.createTempFile("bundle-web", ".jar");
+		wab.deleteOnExit();
+		writeWebBundle(wab, "two", WAB_SYMBOLICNAME, WAB_VERSION, "/test");
+
+		try {
+			createTask(AntUtil.createEmptyProject(), ebaFile, createWebBundle(), wab).execute();
+			fail("the WAB analysis is expected to fail");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(wab.getName()));
+			assertFalse(e.getCause() instanceof CompletionException);
+			assertFalse(e.getCause() instanceof ExecutionException);
+		} finally {
+			if (!ebaFile.delete()) {
+				ebaFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void eba_incremental_rebuilds_when_a_wab_changes() throws Exception {
+		File ebaFile = File.createTempFile("test_incremental", ".eba");
+		ebaFile.delete();
+		File fingerprintFile = new File(ebaFile.getPath() + ".fingerprint");
+		File wab = createWebBundle();
+		assertTrue(wab.setLastModified(System.currentTimeMillis() - 60000));
+
+		EBA task = createTask(AntUtil.createEmptyProject(), ebaFile, wab);
+		task.setIncremental(true);
+		try {
+			task.execute();
+			long lastModified = ebaFile.lastModified() - 10000;
+			assertTrue(ebaFile.setLastModified(lastModified));
+
+			// nothing changed
+			task.execute();
+			assertEquals(lastModified, ebaFile.lastModified());
+
+			// the WAB is not packaged, only the fingerprint sees the change
+			writeWebBundle(wab, "2", WAB_SYMBOLICNAME, "3.0.0", "/test");
+			assertTrue(wab.setLastModified(System.currentTimeMillis() - 30000));
+			task.execute();
+			assertTrue(ebaFile.lastModified() != lastModified);
+			assertTrue(readApplicationContent(ebaFile).contains(WAB_SYMBOLICNAME + ";version=\"3.0.0\""));
+		} finally {
+			if (!ebaFile.delete()) {
+				ebaFile.deleteOnExit();
+			}
+			fingerprintFile.delete();
+		}
+	}
+}
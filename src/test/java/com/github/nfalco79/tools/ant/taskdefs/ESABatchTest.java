@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.ops4j.pax.tinybundles.core.TinyBundles.bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.junit.Test;
+
+import aQute.bnd.osgi.Constants;
+
+public class ESABatchTest {
+
+	private File createBundle(String symbolicName) throws IOException {
+		InputStream is = bundle() //
+				.add(ESABatchTest.class) //
+				.set(Constants.BUNDLE_MANIFESTVERSION, "2") //
+				.set(Constants.BUNDLE_VERSION, "1.0.0") //
+				.set(Constants.BUNDLE_SYMBOLICNAME, symbolicName) //
+				.set(Constants.EXPORT_PACKAGE, "javax.example;version=1.0, " + symbolicName) //
+				.build();
+
+		File bundleFile = File.createTempFile("bundle", ".jar");
+		bundleFile.deleteOnExit();
+		FileUtils.copyInputStreamToFile(is, bundleFile);
+		return bundleFile;
+	}
+
+	private void configure(ESA task, String symbolicName, File destFile, File... bundles) {
+		task.setDestFile(destFile);
+		task.setSymbolicName(symbolicName);
+		task.setVersion("1.0.0");
+		task.setReproducible(true);
+		for (File bundle : bundles) {
+			FileSet fileSet = new FileSet();
+			fileSet.setProject(task.getProject());
+			fileSet.setFile(bundle);
+			task.add(fileSet);
+		}
+	}
+
+	private Manifest readSubsystemManifest(File esaFile) throws Exception {
+		ZipFile zf = new ZipFile(esaFile);
+		try {
+			InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("OSGI-INF/SUBSYSTEM.MF")));
+			try {
+				return new Manifest(reader);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			zf.close();
+		}
+	}
+
+	/**
+	 * A bundle that is not a file, slow to read, that records how many
+	 * threads read bundles at the same time.
+	 */
+	private static class TrackingResource extends Resource {
+		private final byte[] content;
+		private final AtomicInteger active;
+		private final AtomicInteger maxActive;
+		private final Set<Thread> readers;
+
+		TrackingResource(File bundle, AtomicInteger active, AtomicInteger maxActive, Set<Thread> readers) throws IOException {
+			super(bundle.getName(), true, bundle.lastModified(), false, bundle.length());
+			this.content = FileUtils.readFileToByteArray(bundle);
+			this.active = active;
+			this.maxActive = maxActive;
+			this.readers = readers;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			readers.add(Thread.currentThread());
+			int current = active.incrementAndGet();
+			try {
+				synchronized (maxActive) {
+					maxActive.set(Math.max(maxActive.get(), current));
+				}
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				active.decrementAndGet();
+			}
+			return new ByteArrayInputStream(content);
+		}
+	}
+
+	private File createTempArchive(String suffix) throws IOException {
+		File file = File.createTempFile("test", suffix);
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void esabatch_gives_the_same_archives_of_esa() throws Exception {
+		File shared = createBundle("com.example.shared");
+		File bundle1 = createBundle("com.example.one");
+		File bundle2 = createBundle("com.example.two");
+
+		Project project = AntUtil.createEmptyProject();
+
+		ESABatch batch = new ESABatch();
+		batch.setProject(project);
+		batch.setThreads(2);
+		File batchEsa1 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.feature1", batchEsa1, shared, bundle1);
+		File batchEsa2 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.feature2", batchEsa2, shared, bundle2);
+		File batchEba = createTempArchive(".eba");
+		configure(batch.createEba(), "com.example.application", batchEba, shared, bundle1, bundle2);
+		batch.execute();
+
+		File[] batchArchives = new File[] { batchEsa1, batchEsa2, batchEba };
+		ESA[] tasks = new ESA[] { new ESA(), new ESA(), new EBA() };
+		String[] symbolicNames = new String[] { "com.example.feature1", "com.example.feature2", "com.example.application" };
+		File[][] contents = new File[][] { { shared, bundle1 }, { shared, bundle2 }, { shared, bundle1, bundle2 } };
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i].setProject(project);
+			File archive = createTempArchive(i < 2 ? ".esa" : ".eba");
+			configure(tasks[i], symbolicNames[i], archive, contents[i]);
+			tasks[i].execute();
+
+			assertTrue(batchArchives[i].isFile());
+			assertArrayEquals(FileUtils.readFileToByteArray(archive), FileUtils.readFileToByteArray(batchArchives[i]));
+		}
+	}
+
+	@Test
+	public void esabatch_never_exceeds_its_threads() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+		AtomicInteger active = new AtomicInteger();
+		AtomicInteger maxActive = new AtomicInteger();
+		Set<Thread> readers = ConcurrentHashMap.<Thread> newKeySet();
+
+		ESABatch batch = new ESABatch();
+		batch.setProject(project);
+		batch.setThreads(2);
+		File[] archives = new File[4];
+		for (int i = 0; i < archives.length; i++) {
+			archives[i] = createTempArchive(".esa");
+			ESA feature = batch.createEsa();
+			configure(feature, "com.example.feature" + i, archives[i]);
+			feature.setParallelCompression(true);
+			for (int j = 0; j < 4; j++) {
+				feature.add(new TrackingResource(createBundle("com.example.bundle" + i + "_" + j), active, maxActive, readers));
+			}
+		}
+		batch.execute();
+
+		for (File archive : archives) {
+			assertTrue(archive.isFile());
+		}
+		assertTrue("too many concurrent reads: " + maxActive.get(), maxActive.get() <= 2);
+		assertTrue("too many threads: " + readers, readers.size() <= 2);
+		assertFalse(readers.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void esabatch_packages_nested_features() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		ESA base = new ESA();
+		base.setProject(project);
+		File baseEsa = createTempArchive(".esa");
+		configure(base, "com.example.base", baseEsa, createBundle("com.example.shared"));
+		base.execute();
+
+		ESABatch batch = new ESABatch();
+		batch.setProject(project);
+		batch.setThreads(2);
+		File topEsa1 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.top1", topEsa1, baseEsa, createBundle("com.example.one"));
+		File topEsa2 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.top2", topEsa2, baseEsa);
+		batch.execute();
+
+		assertEquals("com.example.base;version=\"1.0.0\";type=\"osgi.subsystem.feature\", com.example.one;version=\"1.0.0\"", //
+				readSubsystemManifest(topEsa1).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		assertEquals("com.example.base;version=\"1.0.0\";type=\"osgi.subsystem.feature\"", //
+				readSubsystemManifest(topEsa2).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esabatch_packages_all_features_when_one_fails() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+		File bundle = createBundle("com.example.one");
+
+		ESABatch batch = new ESABatch();
+		batch.setProject(project);
+		batch.setThreads(2);
+		File esa1 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.feature1", esa1, bundle);
+		ESA invalid = batch.createEsa();
+		configure(invalid, "com.example.invalid", createTempArchive(".esa"), bundle);
+		invalid.setSymbolicName(null);
+		File esa2 = createTempArchive(".esa");
+		configure(batch.createEsa(), "com.example.feature2", esa2, bundle);
+		try {
+			batch.execute();
+			fail("expected the failure of the invalid feature");
+		} catch (BuildException e) {
+			assertEquals("You must specify a symbolic name", e.getMessage());
+		}
+
+		assertTrue(esa1.isFile());
+		assertTrue(esa2.isFile());
+	}
+}
@@ -18,22 +18,39 @@ package com.github.nfalco79.tools.ant.taskdefs;
 import static org.junit.Assert.*;
 import static org.ops4j.pax.tinybundles.core.TinyBundles.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Manifest;
 import org.apache.tools.ant.taskdefs.Manifest.Attribute;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
 import org.junit.Test;
 
 import com.github.nfalco79.tools.ant.taskdefs.ESA;
 import com.github.nfalco79.tools.ant.taskdefs.SubsystemConstants;
+import com.github.nfalco79.tools.ant.taskdefs.util.StringUtils;
 
 import aQute.bnd.osgi.Constants;
 
@@ -125,4 +142,898 @@ public class ESATest {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void esa_manifest_is_not_the_first_entry() throws Exception {
+		File bundle = File.createTempFile("shaded", ".jar");
+		bundle.deleteOnExit();
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(bundle));
+		try {
+			zos.putNextEntry(new ZipEntry("org/example/Sample.class"));
+			zos.write(new byte[4096]);
+			zos.closeEntry();
+			zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			zos.write(("Manifest-Version: 1.0\r\n" //
+					+ "Bundle-ManifestVersion: 2\r\n" //
+					+ "Bundle-SymbolicName: " + BUNDLE_SYMBOLICNAME + "\r\n" //
+					+ "Bundle-Version: " + BUNDLE_VERSION + "\r\n\r\n").getBytes("UTF-8"));
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+
+		File esaFile = File.createTempFile("test", ".esa");
+		esaFile.delete();
+
+		Project project = AntUtil.createEmptyProject();
+
+		ESA task = new ESA();
+		task.setProject(project);
+		task.setDestFile(esaFile);
+		task.setSymbolicName("org.nfalco.sample");
+		task.setVersion("1.0.0");
+
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(bundle);
+		task.add(fileSet);
+		try {
+			task.execute();
+
+			ZipFile zf = new ZipFile(esaFile);
+			InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("OSGI-INF/SUBSYSTEM.MF")));
+			Manifest mf = new Manifest(reader);
+			reader.close();
+			zf.close();
+
+			Attribute attribute = mf.getMainSection().getAttribute(SubsystemConstants.SUBSYSTEM_CONTENT);
+			assertNotNull(attribute);
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", attribute.getValue());
+		} finally {
+			if (!esaFile.delete()) {
+				esaFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void esa_parallel_manifest_extraction_keeps_order() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundlesDir = new File(System.getProperty("java.io.tmpdir"), "esa-bundles-" + System.nanoTime());
+		bundlesDir.mkdirs();
+		for (int i = 0; i < 8; i++) {
+			File bundle = createBundle("esa.bundle.test" + i, "1.0." + i, "org.example.api" + i);
+			FileUtils.moveFile(bundle, new File(bundlesDir, "bundle" + i + ".jar"));
+		}
+
+		try {
+			Manifest serial = readSubsystemManifest(createESA(project, bundlesDir, 1));
+			Manifest parallel = readSubsystemManifest(createESA(project, bundlesDir, 4));
+
+			assertEquals(serial.getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT), //
+					parallel.getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+			assertEquals(serial.getMainSection().getAttributeValue(IBMSubsystemConstants.IBM_API_PACKAGE), //
+					parallel.getMainSection().getAttributeValue(IBMSubsystemConstants.IBM_API_PACKAGE));
+		} finally {
+			FileUtils.deleteQuietly(bundlesDir);
+		}
+	}
+
+	@Test
+	public void esa_bundle_cache_is_invalidated_when_bundle_changes() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundlesDir = new File(System.getProperty("java.io.tmpdir"), "esa-bundles-" + System.nanoTime());
+		File cacheDir = new File(bundlesDir, "cache");
+		File bundle = new File(bundlesDir, "bundle.jar");
+		FileUtils.moveFile(createBundle(BUNDLE_SYMBOLICNAME, "1.0.0", "org.example.api"), bundle);
+
+		try {
+			ESA task = createTask(project, bundle);
+			task.setCacheDir(cacheDir);
+			task.execute();
+			assertTrue(new File(cacheDir, "bundleinfo.cache").isFile());
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"1.0.0\"", readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+
+			// served from the cache
+			task = createTask(project, bundle);
+			task.setCacheDir(cacheDir);
+			task.execute();
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"1.0.0\"", readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+
+			FileUtils.forceDelete(bundle);
+			FileUtils.moveFile(createBundle(BUNDLE_SYMBOLICNAME, "2.0.0", "org.example.api"), bundle);
+			bundle.setLastModified(bundle.lastModified() + 2000);
+
+			task = createTask(project, bundle);
+			task.setCacheDir(cacheDir);
+			task.setCacheChecksum(true);
+			task.execute();
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"2.0.0\"", readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		} finally {
+			FileUtils.deleteQuietly(bundlesDir);
+		}
+	}
+
+	@Test
+	public void esa_incremental_rebuilds_only_when_inputs_change() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+		bundle.setLastModified(System.currentTimeMillis() - 60000);
+
+		ESA task = createTask(project, bundle);
+		task.setIncremental(true);
+		task.execute();
+
+		File esaFile = task.getDestFile();
+		File fingerprintFile = new File(esaFile.getPath() + ".fingerprint");
+		fingerprintFile.deleteOnExit();
+		assertTrue(fingerprintFile.isFile());
+
+		try {
+			long lastModified = esaFile.lastModified() - 10000;
+			assertTrue(esaFile.setLastModified(lastModified));
+
+			// nothing changed
+			task.execute();
+			assertEquals(lastModified, esaFile.lastModified());
+
+			// the archive is newer than its content but the version changed
+			task.setVersion("2.0.0");
+			task.execute();
+			assertTrue(esaFile.lastModified() != lastModified);
+			assertEquals("2.0.0", readSubsystemManifest(esaFile).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_VERSION));
+		} finally {
+			esaFile.delete();
+			fingerprintFile.delete();
+		}
+	}
+
+	@Test
+	public void esa_parallel_compression() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File content = File.createTempFile("content", ".txt");
+		content.deleteOnExit();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		FileUtils.writeStringToFile(content, sb.toString(), "UTF-8");
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+
+		ESA task = createTask(project, bundle);
+		task.setThreads(4);
+		task.setParallelCompression(true);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(content);
+		task.add(fileSet);
+		task.execute();
+
+		File esaFile = task.getDestFile();
+		ZipFile zf = new ZipFile(esaFile);
+		try {
+			ZipEntry ze = zf.getEntry(content.getName());
+			assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+			assertTrue(ze.getCompressedSize() < ze.getSize());
+			assertEquals(sb.toString(), IOUtils.toString(zf.getInputStream(ze), "UTF-8"));
+
+			ze = zf.getEntry(bundle.getName());
+			assertNotNull(ze);
+			assertEquals(bundle.length(), IOUtils.toByteArray(zf.getInputStream(ze)).length);
+		} finally {
+			zf.close();
+		}
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\", " + content.getName() + ";type=\"file\"", //
+				readSubsystemManifest(esaFile).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esa_parallel_compression_falls_back_when_zip64_is_needed() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		project.addBuildListener(new DefaultLogger() {
+			@Override
+			public void messageLogged(BuildEvent event) {
+				messages.add(event.getMessage());
+			}
+		});
+
+		final byte[] data = new byte[64 * 1024];
+		// claims to be larger than what a zip without Zip64 can store
+		Resource huge = new Resource("huge.txt", true, 0, false, 5L * 1024 * 1024 * 1024) {
+			@Override
+			public InputStream getInputStream() {
+				return new ByteArrayInputStream(data);
+			}
+		};
+		huge.setProject(project);
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+
+		ESA task = createTask(project, bundle);
+		task.setThreads(4);
+		task.setParallelCompression(true);
+		task.add(huge);
+		task.execute();
+
+		assertTrue(messages.toString(), messages.contains(task.getDestFile().getName() + " needs the Zip64 extensions, parallelCompression, rawCopy and reproducible are ignored"));
+		ZipFile zf = new ZipFile(task.getDestFile());
+		try {
+			ZipEntry ze = zf.getEntry("huge.txt");
+			assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+			assertEquals(data.length, IOUtils.toByteArray(zf.getInputStream(ze)).length);
+		} finally {
+			zf.close();
+		}
+	}
+
+	@Test
+	public void esa_bundle_with_invalid_header_is_declared() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		project.addBuildListener(new DefaultLogger() {
+			@Override
+			public void messageLogged(BuildEvent event) {
+				messages.add(event.getMessage());
+			}
+		});
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api;=1.0");
+		bundle.deleteOnExit();
+
+		ESA task = createTask(project, bundle);
+		task.execute();
+
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		boolean logged = false;
+		for (String message : messages) {
+			logged |= message.startsWith("Ignoring the invalid Export-Package header of " + bundle.getName() + ": Missing parameter name");
+		}
+		assertTrue(messages.toString(), logged);
+	}
+
+	@Test
+	public void esa_auto_compression_stores_nested_archives() throws Exception {
+		for (boolean parallel : new boolean[] { false, true }) {
+			Project project = AntUtil.createEmptyProject();
+
+			File text = File.createTempFile("content", ".txt");
+			text.deleteOnExit();
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 1000; i++) {
+				sb.append("compressible text\n");
+			}
+			FileUtils.writeStringToFile(text, sb.toString(), "UTF-8");
+
+			File random = File.createTempFile("content", ".bin");
+			random.deleteOnExit();
+			byte[] data = new byte[100000];
+			new Random(0).nextBytes(data);
+			FileUtils.writeByteArrayToFile(random, data);
+
+			File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+			bundle.deleteOnExit();
+
+			ESA task = createTask(project, bundle);
+			task.setCompressionPolicy(ESA.CompressionPolicy.AUTO);
+			task.setParallelCompression(parallel);
+			task.setThreads(2);
+			for (File file : new File[] { text, random }) {
+				FileSet fileSet = new FileSet();
+				fileSet.setProject(project);
+				fileSet.setFile(file);
+				task.add(fileSet);
+			}
+			task.execute();
+
+			ZipFile zf = new ZipFile(task.getDestFile());
+			try {
+				assertEquals(ZipEntry.STORED, zf.getEntry(bundle.getName()).getMethod());
+				assertEquals(ZipEntry.STORED, zf.getEntry(random.getName()).getMethod());
+				assertEquals(ZipEntry.DEFLATED, zf.getEntry(text.getName()).getMethod());
+				assertEquals(ZipEntry.DEFLATED, zf.getEntry("OSGI-INF/SUBSYSTEM.MF").getMethod());
+				assertArrayEquals(data, IOUtils.toByteArray(zf.getInputStream(zf.getEntry(random.getName()))));
+			} finally {
+				zf.close();
+			}
+		}
+	}
+
+	@Test
+	public void esa_manifest_time_does_not_depend_on_build_time() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+		long bundleTime = (System.currentTimeMillis() - 3600000) / 2000 * 2000;
+		assertTrue(bundle.setLastModified(bundleTime));
+
+		ESA task = createTask(project, bundle);
+		task.execute();
+		assertEquals(bundleTime, getEntryTime(task.getDestFile(), "OSGI-INF/SUBSYSTEM.MF"));
+
+		task.setModificationtime("01/01/2000 00:00 AM");
+		task.setRoundUp(false);
+		assertTrue(task.getDestFile().delete());
+		task.execute();
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2000, Calendar.JANUARY, 1);
+		assertEquals(calendar.getTimeInMillis(), getEntryTime(task.getDestFile(), "OSGI-INF/SUBSYSTEM.MF"));
+	}
+
+	@Test
+	public void esa_reproducible_archive() throws Exception {
+		File bundle1 = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle1.deleteOnExit();
+		File bundle2 = createBundle("esa.bundle.other", BUNDLE_VERSION, "org.example.other");
+		bundle2.deleteOnExit();
+
+		String[] hashes = new String[2];
+		byte[][] archives = new byte[2][];
+		for (int i = 0; i < 2; i++) {
+			Project project = AntUtil.createEmptyProject();
+			// different order and times on each build
+			File[] files = i == 0 ? new File[] { bundle1, bundle2 } : new File[] { bundle2, bundle1 };
+			for (File file : files) {
+				assertTrue(file.setLastModified(System.currentTimeMillis() - 3600000 * (i + 1)));
+			}
+
+			ESA task = createTask(project, files[0]);
+			FileSet fileSet = new FileSet();
+			fileSet.setProject(project);
+			fileSet.setFile(files[1]);
+			task.add(fileSet);
+			task.setReproducible(true);
+			task.setParallelCompression(i == 1);
+			task.setContentHashProperty("esa.hash");
+			task.execute();
+
+			hashes[i] = project.getProperty("esa.hash");
+			archives[i] = FileUtils.readFileToByteArray(task.getDestFile());
+			assertEquals("esa.bundle.other;version=\"" + BUNDLE_VERSION + "\", " + BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", //
+					readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		}
+		assertNotNull(hashes[0]);
+		assertEquals(64, hashes[0].length());
+		assertEquals(hashes[0], hashes[1]);
+		assertArrayEquals(archives[0], archives[1]);
+	}
+
+	@Test
+	public void esa_export_package_with_quoted_parameters() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME + ";singleton:=true", BUNDLE_VERSION, //
+				"org.example.a;org.example.b;version=\"[1.0,2.0)\";uses:=\"org.example.c,org.example.d\",javax.example;version=1.0");
+		bundle.deleteOnExit();
+
+		ESA task = createTask(project, bundle);
+		task.execute();
+
+		Manifest mf = readSubsystemManifest(task.getDestFile());
+		assertEquals("javax.example;version=1.0;type=\"spec\", " //
+				+ "org.example.a;version=\"[1.0,2.0)\";uses:=\"org.example.c,org.example.d\", " //
+				+ "org.example.b;version=\"[1.0,2.0)\";uses:=\"org.example.c,org.example.d\"", //
+				mf.getMainSection().getAttributeValue(IBMSubsystemConstants.IBM_API_PACKAGE));
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", mf.getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esa_api_packages_keep_the_highest_version() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle1 = createBundle("esa.bundle.test1", "1.0.0", "org.example.b;version=1.0,javax.example;version=1.0");
+		bundle1.deleteOnExit();
+		File bundle2 = createBundle("esa.bundle.test2", "1.1.0", "org.example.b;version=1.2,org.example.a,javax.other;type=api");
+		bundle2.deleteOnExit();
+
+		ESA task = createTask(project, bundle1);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(bundle2);
+		task.add(fileSet);
+		for (int i = 0; i < 2; i++) {
+			// building again must give the same header
+			assertTrue(!task.getDestFile().exists() || task.getDestFile().delete());
+			task.execute();
+
+			assertEquals("javax.example;version=1.0;type=\"spec\", " //
+					+ "javax.other;type=api, " //
+					+ "org.example.a, " //
+					+ "org.example.b;version=1.2", //
+					readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(IBMSubsystemConstants.IBM_API_PACKAGE));
+		}
+	}
+
+	@Test
+	public void esa_declares_every_packaged_version_of_duplicate_bundles() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle1 = createBundle(BUNDLE_SYMBOLICNAME, "1.10.0", "org.example.api");
+		bundle1.deleteOnExit();
+		File bundle2 = createBundle(BUNDLE_SYMBOLICNAME, "1.9.0", "org.example.api");
+		bundle2.deleteOnExit();
+
+		ESA task = createTask(project, bundle1);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(bundle2);
+		task.add(fileSet);
+		task.execute();
+
+		assertEquals(2, countEntries(task.getDestFile(), ".jar"));
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"1.10.0\", " + BUNDLE_SYMBOLICNAME + ";version=\"1.9.0\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esa_duplicate_bundles_policy() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundlesDir = Files.createTempDirectory("esa-bundles").toFile();
+		try {
+			FileUtils.moveFile(createBundle(BUNDLE_SYMBOLICNAME, "1.0.0", "org.example.api"), new File(bundlesDir, "a.jar"));
+			FileUtils.copyFile(new File(bundlesDir, "a.jar"), new File(bundlesDir, "a-copy.jar"));
+			FileUtils.moveFile(createBundle(BUNDLE_SYMBOLICNAME, "2.0.0", "org.example.api"), new File(bundlesDir, "b.jar"));
+
+			File esaFile = createESA(project, bundlesDir, "warn");
+			assertEquals(3, countEntries(esaFile, ".jar"));
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"1.0.0\", " + BUNDLE_SYMBOLICNAME + ";version=\"2.0.0\"", //
+					readSubsystemManifest(esaFile).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+			assertEquals(2, countEntries(createESA(project, bundlesDir, "dropidentical"), ".jar"));
+			esaFile = createESA(project, bundlesDir, "keephighest");
+			assertEquals(1, countEntries(esaFile, ".jar"));
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"2.0.0\"", //
+					readSubsystemManifest(esaFile).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+			try {
+				createESA(project, bundlesDir, "fail");
+				fail("duplicate bundles are not detected");
+			} catch (BuildException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("a-copy.jar"));
+			}
+		} finally {
+			FileUtils.deleteQuietly(bundlesDir);
+		}
+	}
+
+	private File createESA(Project project, File bundlesDir, String duplicatePolicy) throws IOException {
+		File esaFile = File.createTempFile("test", ".esa");
+		esaFile.delete();
+		esaFile.deleteOnExit();
+
+		ESA task = new ESA();
+		task.setProject(project);
+		task.setDestFile(esaFile);
+		task.setSymbolicName("org.nfalco.sample");
+		task.setVersion("1.0.0");
+		task.setDuplicateBundles(new ESA.DuplicatePolicy(duplicatePolicy));
+
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(bundlesDir);
+		task.add(fileSet);
+		task.execute();
+		return esaFile;
+	}
+
+	private int countEntries(File archive, String suffix) throws IOException {
+		int count = 0;
+		ZipFile zf = new ZipFile(archive);
+		try {
+			for (Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements();) {
+				if (entries.nextElement().getName().endsWith(suffix)) {
+					count++;
+				}
+			}
+		} finally {
+			zf.close();
+		}
+		return count;
+	}
+
+	@Test
+	public void esa_content_index() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api;version=1.0,org.example.spi");
+		bundle.deleteOnExit();
+
+		ESA task = createTask(project, bundle);
+		task.setIndex(true);
+		task.execute();
+
+		Manifest index;
+		ZipFile zf = new ZipFile(task.getDestFile());
+		try {
+			InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("OSGI-INF/INDEX.MF")), "UTF-8");
+			try {
+				index = new Manifest(reader);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			zf.close();
+		}
+
+		Manifest.Section section = index.getSection(bundle.getName());
+		assertNotNull(section);
+		assertEquals("bundle", section.getAttributeValue("Content-Type"));
+		assertEquals(BUNDLE_SYMBOLICNAME, section.getAttributeValue("Bundle-SymbolicName"));
+		assertEquals(BUNDLE_VERSION, section.getAttributeValue("Bundle-Version"));
+		assertEquals("org.example.api;version=1.0, org.example.spi", section.getAttributeValue("Export-Package"));
+		assertEquals(String.valueOf(bundle.length()), section.getAttributeValue("Content-Size"));
+		assertEquals(StringUtils.toHex(MessageDigest.getInstance("SHA-256").digest(FileUtils.readFileToByteArray(bundle))), section.getAttributeValue("SHA-256-Digest"));
+	}
+
+	@Test(expected = BuildException.class)
+	public void esa_invalid_version() throws Exception {
+		new ESA().setVersion("1.0-SNAPSHOT");
+	}
+
+	@Test
+	public void esa_reexecution_parses_each_bundle_once() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+
+		final AtomicInteger parsed = new AtomicInteger();
+		ESA task = new ESA() {
+			@Override
+			protected BundleInfo parseManifest(Resource resource) throws IOException {
+				parsed.incrementAndGet();
+				return super.parseManifest(resource);
+			}
+		};
+		File esaFile = File.createTempFile("test", ".esa");
+		esaFile.deleteOnExit();
+		task.setProject(project);
+		task.setDestFile(esaFile);
+		task.setSymbolicName("org.nfalco.sample");
+		task.setVersion("1.0.0");
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(bundle);
+		task.add(fileSet);
+
+		for (int i = 1; i <= 2; i++) {
+			assertTrue(esaFile.delete());
+			task.execute();
+
+			assertEquals(i, parsed.get());
+			assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", //
+					readSubsystemManifest(esaFile).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		}
+	}
+
+	@Test
+	public void esa_nested_features_and_their_closure() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File bundle = createBundle(BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, "org.example.api");
+		bundle.deleteOnExit();
+
+		// base <- middle <- top, base is only in the feature path
+		File base = createFeature(project, "com.example.base", "1.0.0", bundle);
+		File middle = createFeature(project, "com.example.middle", "1.1.0", base);
+		File top = createFeature(project, "com.example.top", "2.0.0", middle);
+		File featurePath = base.getParentFile();
+
+		ESA task = createTask(project, top);
+		task.setTransitiveFeatures(true);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(featurePath);
+		fileSet.setIncludes(base.getName() + "," + middle.getName());
+		task.addFeaturePath(fileSet);
+		task.execute();
+
+		assertEquals("com.example.top;version=\"2.0.0\";type=\"osgi.subsystem.feature\", " //
+				+ "com.example.middle;version=\"1.1.0\";type=\"osgi.subsystem.feature\", " //
+				+ "com.example.base;version=\"1.0.0\";type=\"osgi.subsystem.feature\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esa_bundle_pool_provides_the_required_bundles() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File pool = Files.createTempDirectory("pool").toFile();
+		pool.deleteOnExit();
+		createPoolBundle(pool, "com.example.api.v1", "1.5.0", Constants.EXPORT_PACKAGE, "org.example.api;version=1.5");
+		createPoolBundle(pool, "com.example.api.v2", "2.0.0", Constants.EXPORT_PACKAGE, "org.example.api;version=2.0");
+		createPoolBundle(pool, "com.example.util", "1.0.0", Constants.IMPORT_PACKAGE, "org.example.more");
+		createPoolBundle(pool, "com.example.more", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.more");
+		createPoolBundle(pool, "com.example.unused", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.unused");
+
+		InputStream is = bundle() //
+				.add(ESATest.class) //
+				.set(Constants.BUNDLE_MANIFESTVERSION, "2") //
+				.set(Constants.BUNDLE_VERSION, BUNDLE_VERSION) //
+				.set(Constants.BUNDLE_SYMBOLICNAME, BUNDLE_SYMBOLICNAME) //
+				.set(Constants.IMPORT_PACKAGE, "org.example.api;version=\"[1.0,2.0)\",org.example.missing;resolution:=optional,org.osgi.framework") //
+				.set(Constants.REQUIRE_BUNDLE, "com.example.util;bundle-version=1.0") //
+				.build();
+		File bundle = File.createTempFile("bundle", ".jar");
+		bundle.deleteOnExit();
+		FileUtils.copyInputStreamToFile(is, bundle);
+
+		ESA task = createTask(project, bundle);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(pool);
+		task.addBundlePool(fileSet);
+		task.execute();
+
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\", " //
+				+ "com.example.api.v1;version=\"1.5.0\", " //
+				+ "com.example.util;version=\"1.0.0\", " //
+				+ "com.example.more;version=\"1.0.0\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+		ZipFile zf = new ZipFile(task.getDestFile());
+		try {
+			assertNotNull(zf.getEntry("com.example.api.v1.jar"));
+			assertNull(zf.getEntry("com.example.api.v2.jar"));
+			assertNull(zf.getEntry("com.example.unused.jar"));
+		} finally {
+			zf.close();
+		}
+	}
+
+	@Test
+	public void esa_bundle_pool_skips_optional_requirements() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File pool = Files.createTempDirectory("pool").toFile();
+		pool.deleteOnExit();
+		createPoolBundle(pool, "com.example.optional", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.optional");
+		createPoolBundle(pool, "com.example.extra", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.extra");
+
+		InputStream is = bundle() //
+				.add(ESATest.class) //
+				.set(Constants.BUNDLE_MANIFESTVERSION, "2") //
+				.set(Constants.BUNDLE_VERSION, BUNDLE_VERSION) //
+				.set(Constants.BUNDLE_SYMBOLICNAME, BUNDLE_SYMBOLICNAME) //
+				.set(Constants.IMPORT_PACKAGE, "org.example.optional;resolution:=optional") //
+				.set(Constants.REQUIRE_BUNDLE, "com.example.extra;resolution:=optional") //
+				.build();
+		File bundle = File.createTempFile("bundle", ".jar");
+		bundle.deleteOnExit();
+		FileUtils.copyInputStreamToFile(is, bundle);
+
+		ESA task = createTask(project, bundle);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(pool);
+		task.addBundlePool(fileSet);
+		task.execute();
+
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+
+		// the same pool resolves also the optional requirements on request
+		task.setResolveOptional(true);
+		assertTrue(task.getDestFile().delete());
+		task.execute();
+
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\", " //
+				+ "com.example.optional;version=\"1.0.0\", " //
+				+ "com.example.extra;version=\"1.0.0\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+	}
+
+	@Test
+	public void esa_bundle_pool_with_invalid_version_range() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+
+		File pool = Files.createTempDirectory("pool").toFile();
+		pool.deleteOnExit();
+		createPoolBundle(pool, "com.example.broken", "1.0.0", Constants.IMPORT_PACKAGE, "org.example.more;version=\"[1.0,2.0\"");
+		createPoolBundle(pool, "com.example.util", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.util");
+		File contentDir = Files.createTempDirectory("content").toFile();
+		contentDir.deleteOnExit();
+		createPoolBundle(contentDir, BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, Constants.REQUIRE_BUNDLE, "com.example.broken,com.example.util");
+
+		// the invalid pool bundle is ignored
+		ESA task = createTask(project, new File(contentDir, BUNDLE_SYMBOLICNAME + ".jar"));
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(pool);
+		task.addBundlePool(fileSet);
+		task.execute();
+		assertEquals(BUNDLE_SYMBOLICNAME + ";version=\"" + BUNDLE_VERSION + "\", com.example.util;version=\"1.0.0\"", //
+				readSubsystemManifest(task.getDestFile()).getMainSection().getAttributeValue(SubsystemConstants.SUBSYSTEM_CONTENT));
+
+		// an invalid content bundle fails the build naming it
+		createPoolBundle(contentDir, "com.example.content", "1.0.0", Constants.IMPORT_PACKAGE, "org.example.util;version=\"(1.0\"");
+		task = createTask(project, new File(contentDir, "com.example.content.jar"));
+		task.addBundlePool(fileSet);
+		try {
+			task.execute();
+			fail("an invalid version range is expected to fail");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("com.example.content"));
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	@Test
+	public void esa_incremental_parses_the_bundle_pool_only_when_inputs_change() throws Exception {
+		Project project = AntUtil.createEmptyProject();
+		// messages may be logged by worker threads
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		project.addBuildListener(new DefaultLogger() {
+			@Override
+			public void messageLogged(BuildEvent event) {
+				messages.add(event.getMessage());
+			}
+		});
+
+		long inputsTime = System.currentTimeMillis() - 60000;
+		File pool = Files.createTempDirectory("pool").toFile();
+		pool.deleteOnExit();
+		createPoolBundle(pool, "com.example.api", "1.0.0", Constants.EXPORT_PACKAGE, "org.example.api");
+		File poolBundle = new File(pool, "com.example.api.jar");
+		assertTrue(poolBundle.setLastModified(inputsTime));
+		File contentDir = Files.createTempDirectory("content").toFile();
+		contentDir.deleteOnExit();
+		createPoolBundle(contentDir, BUNDLE_SYMBOLICNAME, BUNDLE_VERSION, Constants.IMPORT_PACKAGE, "org.example.api");
+		File bundle = new File(contentDir, BUNDLE_SYMBOLICNAME + ".jar");
+		assertTrue(bundle.setLastModified(inputsTime));
+
+		ESA task = createTask(project, bundle);
+		task.setIncremental(true);
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(pool);
+		task.addBundlePool(fileSet);
+		task.execute();
+
+		File esaFile = task.getDestFile();
+		File fingerprintFile = new File(esaFile.getPath() + ".fingerprint");
+		fingerprintFile.deleteOnExit();
+		try {
+			assertTrue(messages.contains("Adding com.example.api.jar from the bundle pool"));
+			long lastModified = esaFile.lastModified() - 10000;
+			assertTrue(esaFile.setLastModified(lastModified));
+
+			// nothing changed, the pool is not analysed
+			messages.clear();
+			task.execute();
+			assertEquals(lastModified, esaFile.lastModified());
+			assertFalse(messages.contains("Adding com.example.api.jar from the bundle pool"));
+
+			// an empty license differs from no license
+			task.setLicense("");
+			task.execute();
+			assertTrue(esaFile.lastModified() != lastModified);
+			assertTrue(esaFile.setLastModified(lastModified));
+
+			// a pool bundle changed
+			messages.clear();
+			assertTrue(poolBundle.setLastModified(inputsTime + 1000));
+			task.execute();
+			assertTrue(esaFile.lastModified() != lastModified);
+			assertTrue(messages.contains("Adding com.example.api.jar from the bundle pool"));
+			ZipFile zf = new ZipFile(esaFile);
+			try {
+				assertNotNull(zf.getEntry("com.example.api.jar"));
+			} finally {
+				zf.close();
+			}
+		} finally {
+			esaFile.delete();
+			fingerprintFile.delete();
+		}
+	}
+
+	private void createPoolBundle(File pool, String symbolicName, String version, String header, String value) throws IOException {
+		InputStream is = bundle() //
+				.add(ESATest.class) //
+				.set(Constants.BUNDLE_MANIFESTVERSION, "2") //
+				.set(Constants.BUNDLE_VERSION, version) //
+				.set(Constants.BUNDLE_SYMBOLICNAME, symbolicName) //
+				.set(header, value) //
+				.build();
+		File bundleFile = new File(pool, symbolicName + ".jar");
+		bundleFile.deleteOnExit();
+		FileUtils.copyInputStreamToFile(is, bundleFile);
+	}
+
+	private File createFeature(Project project, String symbolicName, String version, File content) throws IOException {
+		ESA task = createTask(project, content);
+		task.setSymbolicName(symbolicName);
+		task.setVersion(version);
+		task.execute();
+		File feature = new File(task.getDestFile().getParentFile(), symbolicName + ".esa");
+		feature.deleteOnExit();
+		FileUtils.copyFile(task.getDestFile(), feature);
+		return feature;
+	}
+
+	private long getEntryTime(File archive, String entryName) throws IOException {
+		ZipFile zf = new ZipFile(archive);
+		try {
+			return zf.getEntry(entryName).getTime();
+		} finally {
+			zf.close();
+		}
+	}
+
+	private ESA createTask(Project project, File bundle) throws IOException {
+		File esaFile = File.createTempFile("test", ".esa");
+		esaFile.delete();
+		esaFile.deleteOnExit();
+
+		ESA task = new ESA();
+		task.setProject(project);
+		task.setDestFile(esaFile);
+		task.setSymbolicName("org.nfalco.sample");
+		task.setVersion("1.0.0");
+
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setFile(bundle);
+		task.add(fileSet);
+		return task;
+	}
+
+	private File createBundle(String symbolicName, String version, String exportPackage) throws IOException {
+		InputStream is = bundle() //
+				.add(ESATest.class) //
+				.set(Constants.BUNDLE_MANIFESTVERSION, "2") //
+				.set(Constants.BUNDLE_VERSION, version) //
+				.set(Constants.BUNDLE_SYMBOLICNAME, symbolicName) //
+				.set(Constants.EXPORT_PACKAGE, exportPackage) //
+				.build();
+
+		File bundleFile = File.createTempFile("bundle", ".jar");
+		FileUtils.copyInputStreamToFile(is, bundleFile);
+		return bundleFile;
+	}
+
+	private File createESA(Project project, File bundlesDir, int threads) throws IOException {
+		File esaFile = File.createTempFile("test", ".esa");
+		esaFile.delete();
+		esaFile.deleteOnExit();
+
+		ESA task = new ESA();
+		task.setProject(project);
+		task.setDestFile(esaFile);
+		task.setSymbolicName("org.nfalco.sample");
+		task.setVersion("1.0.0");
+		task.setThreads(threads);
+
+		FileSet fileSet = new FileSet();
+		fileSet.setProject(project);
+		fileSet.setDir(bundlesDir);
+		task.add(fileSet);
+		task.execute();
+
+		return esaFile;
+	}
+
+	private Manifest readSubsystemManifest(File esaFile) throws Exception {
+		ZipFile zf = new ZipFile(esaFile);
+		try {
+			InputStreamReader reader = new InputStreamReader(zf.getInputStream(zf.getEntry("OSGI-INF/SUBSYSTEM.MF")));
+			try {
+				return new Manifest(reader);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			zf.close();
+		}
+	}
+}
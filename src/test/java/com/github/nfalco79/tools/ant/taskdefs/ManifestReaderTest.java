@@ -18,15 +18,28 @@ package com.github.nfalco79.tools.ant.taskdefs;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Manifest;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.util.FileUtils;
 import org.junit.Test;
 
 import com.github.nfalco79.tools.ant.taskdefs.ManifestReader;
 import com.github.nfalco79.tools.ant.taskdefs.ManifestReader.Attribute;
+import com.github.nfalco79.tools.ant.taskdefs.ManifestReader.MergePolicy;
 import com.github.nfalco79.tools.ant.taskdefs.ManifestReader.Section;
 
 public class ManifestReaderTest {
@@ -36,6 +49,7 @@ public class ManifestReaderTest {
 
 		mf.addConfiguredAttribute(new org.apache.tools.ant.taskdefs.Manifest.Attribute("Bundle-Version", "1.0.0.1"));
 		mf.addConfiguredAttribute(new org.apache.tools.ant.taskdefs.Manifest.Attribute("Bundle-SymbolicName", "com.example.bundle"));
+		mf.addConfiguredAttribute(new org.apache.tools.ant.taskdefs.Manifest.Attribute("Export-Package", "com.example.api;uses:=\"com.example.spi,com.example.util\";version=\"1.0\",com.example.spi;version=\"1.0\""));
 
 		org.apache.tools.ant.taskdefs.Manifest.Section section1 = new org.apache.tools.ant.taskdefs.Manifest.Section();
 		section1.setName("Section1");
@@ -115,4 +129,462 @@ public class ManifestReaderTest {
 		assertEquals("Wrong value for property mf.Section1.Other-Nested-Attribute", "other.nested.section1", project.getProperty("mf.Section1.Other-Nested-Attribute"));
 		assertEquals("Wrong value for property mf.Section2.Nested-Attribute", "nested.section2", project.getProperty("mf.Section2.Nested-Attribute"));
 	}
+
+	@Test
+	public void manifestreader_header_paths() throws Exception {
+		File mfFile = createManifest();
+
+		Project project = AntUtil.createEmptyProject();
+
+		ManifestReader task = new ManifestReader();
+		task.setProject(project);
+		task.setFile(mfFile);
+		task.setPrefix("mf.");
+		Attribute attribute = new Attribute("Export-Package");
+		attribute.setPaths(true);
+		task.addConfiguredAttribute(attribute);
+
+		try {
+			task.execute();
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+
+		assertEquals("Wrong value for property mf.Export-Package", "com.example.api,com.example.spi", project.getProperty("mf.Export-Package"));
+	}
+
+	@Test
+	public void manifestreader_archives() throws Exception {
+		File dir = Files.createTempDirectory("archives").toFile();
+		try {
+			createArchive(new File(dir, "bundle-a.jar"), "META-INF/MANIFEST.MF", "Bundle-Version", "1.0.0");
+			createArchive(new File(dir, "bundle-b.jar"), "META-INF/MANIFEST.MF", "Bundle-Version", "2.0.0");
+			createArchive(new File(dir, "feature.esa"), "OSGI-INF/SUBSYSTEM.MF", "Subsystem-Version", "3.0.0");
+
+			Project project = AntUtil.createEmptyProject();
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setPrefix("mf.");
+			task.setThreads(2);
+			FileSet fileSet = new FileSet();
+			fileSet.setProject(project);
+			fileSet.setDir(dir);
+			task.add(fileSet);
+			task.execute();
+
+			assertEquals("1.0.0", project.getProperty("mf.bundle-a.Bundle-Version"));
+			assertEquals("2.0.0", project.getProperty("mf.bundle-b.Bundle-Version"));
+			assertEquals("3.0.0", project.getProperty("mf.feature.Subsystem-Version"));
+		} finally {
+			for (File file : dir.listFiles()) {
+				FileUtils.delete(file);
+			}
+			FileUtils.delete(dir);
+		}
+	}
+
+	@Test
+	public void manifestreader_single_archive_keeps_property_names() throws Exception {
+		File dir = Files.createTempDirectory("archives").toFile();
+		try {
+			File archive = new File(dir, "bundle-a.jar");
+			createArchive(archive, "META-INF/MANIFEST.MF", "Bundle-Version", "1.0.0");
+
+			Project project = AntUtil.createEmptyProject();
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setPrefix("mf.");
+			task.setFile(archive);
+			task.addConfiguredAttribute(new Attribute("Bundle-Version", "bundle.version"));
+			task.execute();
+			assertEquals("1.0.0", project.getProperty("bundle.version"));
+
+			task = new ManifestReader();
+			task.setProject(project);
+			task.setPrefix("mf.");
+			task.setFile(archive);
+			task.execute();
+			assertEquals("1.0.0", project.getProperty("mf.Bundle-Version"));
+		} finally {
+			for (File file : dir.listFiles()) {
+				FileUtils.delete(file);
+			}
+			FileUtils.delete(dir);
+		}
+	}
+
+	@Test
+	public void manifestreader_project_cache() throws Exception {
+		File mfFile = createManifest();
+		try {
+			Project project = AntUtil.createEmptyProject();
+			// reads of the same selected attributes share the partial manifest
+			for (String prefix : new String[] { "mf.", "again." }) {
+				ManifestReader task = new ManifestReader();
+				task.setProject(project);
+				task.setFile(mfFile);
+				task.setPrefix(prefix);
+				task.addConfiguredAttribute(new Attribute("Bundle-Version"));
+				task.execute();
+			}
+			// full reads do not
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setPrefix("other.");
+			task.execute();
+			// and any later read of selected attributes finds the whole one
+			task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setPrefix("mf.");
+			task.addConfiguredAttribute(new Attribute("Bundle-SymbolicName"));
+			task.execute();
+
+			assertEquals("1.0.0.1", project.getProperty("mf.Bundle-Version"));
+			assertEquals("1.0.0.1", project.getProperty("again.Bundle-Version"));
+			assertEquals("com.example.bundle", project.getProperty("mf.Bundle-SymbolicName"));
+			assertEquals("nested.section1", project.getProperty("other.Section1.Nested-Attribute"));
+			ManifestCache cache = ManifestCache.getInstance(project);
+			assertEquals(2, cache.getMisses());
+			assertEquals(2, cache.getHits());
+
+			// too small to keep any manifest
+			task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setCacheLimit(1);
+			task.execute();
+			assertEquals(0, cache.size());
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void manifestreader_stops_at_the_selected_attributes_by_default() throws Exception {
+		// the section is not valid, only a full read parses it
+		File mfFile = File.createTempFile("MANIFEST", ".MF");
+		try {
+			Files.write(mfFile.toPath(), "Manifest-Version: 1.0\r\nBundle-Version: 1.0.0\r\n\r\nName: broken\r\nnot an attribute\r\n".getBytes("UTF-8"));
+
+			Project project = AntUtil.createEmptyProject();
+			for (String prefix : new String[] { "mf.", "again." }) {
+				ManifestReader task = new ManifestReader();
+				task.setProject(project);
+				task.setFile(mfFile);
+				task.setPrefix(prefix);
+				task.addConfiguredAttribute(new Attribute("Bundle-Version"));
+				task.execute();
+			}
+			assertEquals("1.0.0", project.getProperty("mf.Bundle-Version"));
+			assertEquals("1.0.0", project.getProperty("again.Bundle-Version"));
+			ManifestCache cache = ManifestCache.getInstance(project);
+			assertEquals(1, cache.getMisses());
+			assertEquals(1, cache.getHits());
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			try {
+				task.execute();
+				fail("the partial manifest is used for a full read");
+			} catch (BuildException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("is invalid"));
+			}
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void manifestreader_lazy_properties() throws Exception {
+		File mfFile = createManifest();
+		try {
+			Project project = AntUtil.createEmptyProject();
+			project.setNewProperty("mf.Bundle-Version", "defined");
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setPrefix("mf.");
+			task.setLazy(true);
+			task.execute();
+
+			// nothing bound up front
+			assertFalse(project.getProperties().containsKey("mf.Bundle-SymbolicName"));
+
+			assertEquals("com.example.bundle", project.getProperty("mf.Bundle-SymbolicName"));
+			assertEquals("nested.section1", project.getProperty("mf.Section1.Nested-Attribute"));
+			assertEquals("nested.section2", project.replaceProperties("${mf.Section2.Nested-Attribute}"));
+			assertEquals("defined", project.getProperty("mf.Bundle-Version"));
+			assertNull(project.getProperty("mf.bundle-symbolicname"));
+			assertNull(project.getProperty("mf.Section3.Nested-Attribute"));
+			assertTrue(project.getProperties().containsKey("mf.Bundle-SymbolicName"));
+			assertFalse(project.getProperties().containsKey("mf.Section1.Other-Nested-Attribute"));
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void manifestreader_lazy_properties_without_prefix() throws Exception {
+		File mfFile = createManifest();
+		try {
+			Project project = AntUtil.createEmptyProject();
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setLazy(true);
+			task.execute();
+
+			assertNull(project.getProperty("unrelated.property"));
+			assertEquals("com.example.bundle", project.getProperty("Bundle-SymbolicName"));
+			assertEquals("nested.section1", project.getProperty("Section1.Nested-Attribute"));
+			assertNull(project.getProperty("Section1"));
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void manifestreader_lazy_reads_share_the_evaluator() throws Exception {
+		File mfFile = createManifest();
+		File dir = Files.createTempDirectory("archives").toFile();
+		try {
+			File archive = new File(dir, "bundle-a.jar");
+			createArchive(archive, "META-INF/MANIFEST.MF", "Bundle-Version", "2.0.0");
+
+			Project project = AntUtil.createEmptyProject();
+			for (File file : new File[] { mfFile, archive }) {
+				ManifestReader task = new ManifestReader();
+				task.setProject(project);
+				task.setFile(file);
+				task.setPrefix(file == archive ? "archive." : "mf.");
+				task.setLazy(true);
+				task.execute();
+			}
+			Object evaluator = project.getReference(ManifestPropertyEvaluator.REFERENCE_ID);
+			assertNotNull(evaluator);
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(archive);
+			task.setPrefix("mf.");
+			task.setLazy(true);
+			task.execute();
+			assertSame(evaluator, project.getReference(ManifestPropertyEvaluator.REFERENCE_ID));
+
+			assertEquals("com.example.bundle", project.getProperty("mf.Bundle-SymbolicName"));
+			assertEquals("2.0.0", project.getProperty("archive.Bundle-Version"));
+			// the first read wins as for bound properties
+			assertEquals("1.0.0.1", project.getProperty("mf.Bundle-Version"));
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+			for (File file : dir.listFiles()) {
+				FileUtils.delete(file);
+			}
+			FileUtils.delete(dir);
+		}
+	}
+
+	@Test
+	public void manifestreader_stops_reading_selected_attributes() throws Exception {
+		File mfFile = File.createTempFile("MANIFEST", ".MF");
+		try {
+			// the last section is not valid and must not be read
+			String content = "Manifest-Version: 1.0\r\n" //
+					+ "Bundle-SymbolicName: com.example.\r\n" //
+					+ " bundle\r\n" //
+					+ "Bundle-Version: 1.0.0\r\n" //
+					+ "\r\n" //
+					+ "Name: org/example/very/long/package/name/of/the/entry/Some\r\n" //
+					+ " Class.class\r\n" //
+					+ "SHA-256-Digest: abcdef\r\n" //
+					+ "\r\n" //
+					+ "Name: Section1\r\n" //
+					+ "Nested-Attribute: nested.section1\r\n" //
+					+ "Other-Nested-Attribute: other.nested.section1\r\n" //
+					+ "\r\n" //
+					+ "Name: Broken\r\n" //
+					+ "not an attribute\r\n";
+			Files.write(mfFile.toPath(), content.getBytes("UTF-8"));
+
+			Project project = AntUtil.createEmptyProject();
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.setFile(mfFile);
+			task.setCache(false);
+			task.addConfiguredAttribute(new Attribute("bundle-symbolicname", "bsn"));
+			Section section = new Section("Section1");
+			section.addConfiguredAttribute(new Attribute("Nested-Attribute"));
+			task.addConfiguredSection(section);
+			task.execute();
+
+			assertEquals("com.example.bundle", project.getProperty("bsn"));
+			assertEquals("nested.section1", project.getProperty("Section1.Nested-Attribute"));
+			assertNull(project.getProperty("Section1.Other-Nested-Attribute"));
+			assertNull(project.getProperty("Bundle-Version"));
+
+			try {
+				task = new ManifestReader();
+				task.setProject(project);
+				task.setFile(mfFile);
+				task.setCache(false);
+				task.execute();
+				fail("the whole manifest is expected to be read");
+			} catch (BuildException e) {
+				// expected
+			}
+		} finally {
+			if (!mfFile.delete()) {
+				mfFile.deleteOnExit();
+			}
+		}
+	}
+
+	@Test
+	public void manifestreader_merge_policies() throws Exception {
+		File dir = Files.createTempDirectory("manifests").toFile();
+		try {
+			File first = new File(dir, "first.MF");
+			Files.write(first.toPath(), ("Export-Package: com.example.api\r\n" //
+					+ "Bundle-Vendor: Example\r\n" //
+					+ "Bundle-Version: 1.0.0\r\n" //
+					+ "\r\n" //
+					+ "Name: Section1\r\n" //
+					+ "Nested-Attribute: first\r\n").getBytes("UTF-8"));
+			File second = new File(dir, "second.MF");
+			Files.write(second.toPath(), ("Export-Package: com.example.spi\r\n" //
+					+ "Bundle-Vendor: Example\r\n" //
+					+ "Bundle-Version: 2.0.0\r\n" //
+					+ "\r\n" //
+					+ "Name: Section1\r\n" //
+					+ "Nested-Attribute: second\r\n").getBytes("UTF-8"));
+			File fragment = new File(dir, "fragment.MF");
+			Files.write(fragment.toPath(), ("Export-Package: com.example.spi\r\n" //
+					+ "Bundle-Vendor: Example\r\n").getBytes("UTF-8"));
+
+			Project project = AntUtil.createEmptyProject();
+			for (String policy : new String[] { "lastwins", "firstwins", "concat" }) {
+				ManifestReader task = new ManifestReader();
+				task.setProject(project);
+				task.add(new FileResource(first));
+				task.add(new FileResource("concat".equals(policy) ? fragment : second));
+				task.setPrefix(policy + ".");
+				task.setMergePolicy(new MergePolicy(policy));
+				task.execute();
+			}
+			assertEquals("com.example.spi", project.getProperty("lastwins.Export-Package"));
+			assertEquals("second", project.getProperty("lastwins.Section1.Nested-Attribute"));
+			assertEquals("com.example.api", project.getProperty("firstwins.Export-Package"));
+			assertEquals("first", project.getProperty("firstwins.Section1.Nested-Attribute"));
+			assertEquals("com.example.api,com.example.spi", project.getProperty("concat.Export-Package"));
+			assertEquals("Example", project.getProperty("concat.Bundle-Vendor"));
+			assertEquals("1.0.0", project.getProperty("concat.Bundle-Version"));
+
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			task.add(new FileResource(first));
+			task.add(new FileResource(second));
+			task.setMergePolicy(MergePolicy.FAIL);
+			try {
+				task.execute();
+				fail("conflicting values are expected to fail");
+			} catch (BuildException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(second.getName()));
+			}
+
+			// single valued attributes are not concatenated
+			task = new ManifestReader();
+			task.setProject(project);
+			task.add(new FileResource(first));
+			task.add(new FileResource(second));
+			task.setMergePolicy(MergePolicy.CONCAT);
+			try {
+				task.execute();
+				fail("conflicting versions are expected to fail");
+			} catch (BuildException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Bundle-Version") && e.getMessage().contains(second.getName()));
+			}
+		} finally {
+			for (File file : dir.listFiles()) {
+				FileUtils.delete(file);
+			}
+			FileUtils.delete(dir);
+		}
+	}
+
+	@Test
+	public void manifestreader_lazy_concat_reports_the_contributors() throws Exception {
+		File dir = Files.createTempDirectory("manifests").toFile();
+		try {
+			File[] files = new File[3];
+			String[] exports = { "com.example.api", "com.example.spi", "com.example.api" };
+			for (int i = 0; i < files.length; i++) {
+				files[i] = new File(dir, "manifest" + i + ".MF");
+				Files.write(files[i].toPath(), ("Export-Package: " + exports[i] + "\r\n").getBytes("UTF-8"));
+			}
+
+			Project project = AntUtil.createEmptyProject();
+			final List<String> messages = new CopyOnWriteArrayList<String>();
+			project.addBuildListener(new DefaultLogger() {
+				@Override
+				public void messageLogged(BuildEvent event) {
+					messages.add(event.getMessage());
+				}
+			});
+			ManifestReader task = new ManifestReader();
+			task.setProject(project);
+			for (File file : files) {
+				task.add(new FileResource(file));
+			}
+			task.setPrefix("mf.");
+			task.setLazy(true);
+			task.setMergePolicy(MergePolicy.CONCAT);
+			task.execute();
+
+			// a value read again is not joined twice
+			assertEquals("com.example.api,com.example.spi", project.getProperty("mf.Export-Package"));
+			assertTrue(messages.toString(), messages.contains("mf.Export-Package contributed by " + files[0] + "," + files[1]));
+		} finally {
+			for (File file : dir.listFiles()) {
+				FileUtils.delete(file);
+			}
+			FileUtils.delete(dir);
+		}
+	}
+
+	private void createArchive(File archive, String entryName, String name, String value) throws Exception {
+		Manifest mf = new Manifest();
+		mf.addConfiguredAttribute(new org.apache.tools.ant.taskdefs.Manifest.Attribute(name, value));
+
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive));
+		try {
+			zos.putNextEntry(new ZipEntry("readme.txt"));
+			zos.write("first entry".getBytes("UTF-8"));
+			zos.putNextEntry(new ZipEntry(entryName));
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(zos, "UTF-8"));
+			mf.write(writer);
+			writer.flush();
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+	}
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class SymbolTableTest {
+
+	@Test
+	public void equal_strings_share_the_instance() throws Exception {
+		SymbolTable table = new SymbolTable();
+		String symbol = table.canonical(new String("com.example"));
+		assertSame(symbol, table.canonical(new String("com.example")));
+		assertNotSame(symbol, table.canonical("com.example.other"));
+		assertNull(table.canonical(null));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void unused_strings_are_collected() throws Exception {
+		SymbolTable table = new SymbolTable();
+		for (int i = 0; i < 1000; i++) {
+			table.canonical("com.example.pkg" + i);
+		}
+		for (int i = 0; i < 50 && table.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void concurrent_lookups_share_the_instance() throws Exception {
+		final SymbolTable table = new SymbolTable();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>();
+			for (int t = 0; t < 4; t++) {
+				tasks.add(new Callable<String[]>() {
+					@Override
+					public String[] call() throws Exception {
+						String[] symbols = new String[500];
+						for (int i = 0; i < symbols.length; i++) {
+							symbols[i] = table.canonical(new String("com.example.pkg" + i));
+						}
+						return symbols;
+					}
+				});
+			}
+			List<Future<String[]>> results = executor.invokeAll(tasks);
+			String[] expected = results.get(0).get();
+			for (Future<String[]> result : results) {
+				String[] symbols = result.get();
+				for (int i = 0; i < symbols.length; i++) {
+					assertSame(expected[i], symbols[i]);
+				}
+			}
+			assertEquals(500, table.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DeflatePolicyTest {
+
+	@Test
+	public void sampling_is_not_recorded() throws Exception {
+		DeflatePolicy policy = new DeflatePolicy(-1);
+
+		byte[] text = new byte[4096];
+		Arrays.fill(text, (byte) 'a');
+		assertTrue(policy.isCompressible(text, text.length));
+
+		byte[] random = new byte[4096];
+		new Random(0).nextBytes(random);
+		assertFalse(policy.isCompressible(random, random.length));
+
+		assertEquals(0, policy.getDeflatedBytes());
+		assertEquals(0, policy.getStoredBytes());
+
+		// the caller records the final encoding of each entry once
+		policy.recordDeflated(text.length, 1000);
+		policy.recordStored(random.length);
+		assertEquals(text.length, policy.getDeflatedBytes());
+		assertEquals(random.length, policy.getStoredBytes());
+		assertEquals(1, policy.getStoredEntries());
+	}
+}
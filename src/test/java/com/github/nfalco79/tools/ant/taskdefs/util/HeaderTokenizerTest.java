@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HeaderTokenizerTest {
+
+	@Test
+	public void tokens_of_a_clause() throws Exception {
+		HeaderTokenizer tokenizer = new HeaderTokenizer(" com.example.a ; com.example.b;version=\"[1.0,2.0)\";resolution:=optional , com.example.c");
+		assertEquals(HeaderTokenizer.PATH, tokenizer.next());
+		assertEquals("com.example.a", tokenizer.getName());
+		assertEquals(HeaderTokenizer.PATH, tokenizer.next());
+		assertEquals("com.example.b", tokenizer.getName());
+		assertEquals(HeaderTokenizer.ATTRIBUTE, tokenizer.next());
+		assertEquals("version", tokenizer.getName());
+		assertEquals("[1.0,2.0)", tokenizer.getValue());
+		assertEquals(HeaderTokenizer.DIRECTIVE, tokenizer.next());
+		assertEquals("resolution", tokenizer.getName());
+		assertEquals("optional", tokenizer.getValue());
+		assertEquals(HeaderTokenizer.CLAUSE_END, tokenizer.next());
+		assertEquals("com.example.a ; com.example.b;version=\"[1.0,2.0)\";resolution:=optional", tokenizer.getClause());
+		assertEquals("version=\"[1.0,2.0)\";resolution:=optional", tokenizer.getParameters());
+		assertEquals(HeaderTokenizer.PATH, tokenizer.next());
+		assertEquals("com.example.c", tokenizer.getName());
+		assertEquals(HeaderTokenizer.CLAUSE_END, tokenizer.next());
+		assertEquals("", tokenizer.getParameters());
+		assertEquals(HeaderTokenizer.END, tokenizer.next());
+	}
+
+	@Test
+	public void quoted_values_keep_separators() throws Exception {
+		assertArrayEquals(new String[] { "a", "b" }, HeaderTokenizer.getPaths("a;uses:=\"x,y;z\",b"));
+	}
+
+	@Test
+	public void escaped_quotes() throws Exception {
+		HeaderTokenizer tokenizer = new HeaderTokenizer("a;note=\"say \\\"hi\\\", \\\\ok\"");
+		assertEquals(HeaderTokenizer.PATH, tokenizer.next());
+		assertEquals(HeaderTokenizer.ATTRIBUTE, tokenizer.next());
+		assertEquals("say \"hi\", \\ok", tokenizer.getValue());
+		assertEquals(HeaderTokenizer.CLAUSE_END, tokenizer.next());
+		assertEquals(HeaderTokenizer.END, tokenizer.next());
+	}
+
+	@Test
+	public void empty_clauses_and_paths_are_skipped() throws Exception {
+		assertArrayEquals(new String[] { "a", "b", "c" }, HeaderTokenizer.getPaths("a;;b,,c,"));
+		assertArrayEquals(new String[0], HeaderTokenizer.getPaths(""));
+		assertArrayEquals(new String[0], HeaderTokenizer.getPaths("  "));
+	}
+
+	@Test
+	public void malformed_headers() throws Exception {
+		for (String header : new String[] { "a;version=\"1.0", "a;=1.0", "a;version=1.0;b", "a;version=\"1.0\"x" }) {
+			try {
+				HeaderTokenizer.getPaths(header);
+				fail("expected invalid: " + header);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith(header));
+			}
+		}
+	}
+}
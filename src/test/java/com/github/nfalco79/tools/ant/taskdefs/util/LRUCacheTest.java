@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LRUCacheTest {
+
+	@Test
+	public void least_recently_used_entries_are_evicted() throws Exception {
+		// two entries for each segment, 0, 16 and 32 are in the same one
+		LRUCache<Integer, String> cache = new LRUCache<Integer, String>(32);
+		assertEquals("0", cache.putIfAbsent(0, "0"));
+		assertEquals("16", cache.putIfAbsent(16, "16"));
+		assertEquals("0", cache.get(0));
+		assertEquals("32", cache.putIfAbsent(32, "32"));
+
+		assertEquals("0", cache.get(0));
+		assertNull(cache.get(16));
+		assertEquals("32", cache.get(32));
+	}
+
+	@Test
+	public void cached_value_wins() throws Exception {
+		LRUCache<String, String> cache = new LRUCache<String, String>(32);
+		String value = cache.putIfAbsent("key", new String("value"));
+		assertSame(value, cache.putIfAbsent("key", new String("value")));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void size_is_bounded() throws Exception {
+		LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(64);
+		for (int i = 0; i < 1000; i++) {
+			cache.putIfAbsent(i, i);
+		}
+		assertEquals(64, cache.size());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class VersionRangeTest {
+
+	private static boolean includes(String range, String version) {
+		return VersionRange.parseRange(range).includes(Version.parseVersion(version));
+	}
+
+	@Test
+	public void single_version_has_no_upper_bound() throws Exception {
+		VersionRange range = VersionRange.parseRange("1.2");
+		assertEquals(Version.parseVersion("1.2.0"), range.getLeft());
+		assertTrue(range.isLeftClosed());
+		assertNull(range.getRight());
+		assertFalse(includes("1.2", "1.1.9"));
+		assertTrue(includes("1.2", "1.2.0"));
+		assertTrue(includes("1.2", "99.0.0"));
+	}
+
+	@Test
+	public void bounds_of_the_range() throws Exception {
+		assertTrue(includes("[1.0,2.0)", "1.0.0"));
+		assertTrue(includes("[1.0,2.0)", "1.9.9.qualifier"));
+		assertFalse(includes("[1.0,2.0)", "2.0.0"));
+		assertFalse(includes("(1.0,2.0]", "1.0.0"));
+		assertTrue(includes("(1.0,2.0]", "1.0.0.a"));
+		assertTrue(includes("(1.0,2.0]", "2.0.0"));
+		assertFalse(includes("(1.0,2.0]", "2.0.0.a"));
+		assertFalse(includes("[1.0,1.0)", "1.0.0"));
+		assertTrue(includes("[1.0, 1.0]", "1.0.0"));
+	}
+
+	@Test
+	public void missing_range_includes_any_version() throws Exception {
+		assertSame(VersionRange.ANY, VersionRange.parseRange(null));
+		assertSame(VersionRange.ANY, VersionRange.parseRange(" "));
+		assertTrue(VersionRange.ANY.includes(Version.EMPTY));
+		assertTrue(VersionRange.ANY.includes(Version.parseVersion("1000")));
+	}
+
+	@Test
+	public void canonical_format() throws Exception {
+		assertEquals("1.2.0", VersionRange.parseRange("1.2").toString());
+		assertEquals("[1.0.0,2.0.0)", VersionRange.parseRange("[1.0, 2)").toString());
+		assertEquals(VersionRange.parseRange("[1,2)"), VersionRange.parseRange("[1.0.0,2.0.0)"));
+		assertEquals(VersionRange.parseRange("[1,2)").hashCode(), VersionRange.parseRange("[1.0.0,2.0.0)").hashCode());
+		assertNotEquals(VersionRange.parseRange("[1,2)"), VersionRange.parseRange("[1,2]"));
+	}
+
+	@Test
+	public void invalid_ranges() throws Exception {
+		String[] invalids = { "[1.0,2.0", "1.0,2.0)", "[1.0]", "[a,2.0)", "[1.0,2.0.)", "(1.0,2.0}" };
+		for (String invalid : invalids) {
+			try {
+				VersionRange.parseRange(invalid);
+				fail("range " + invalid + " is not valid");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
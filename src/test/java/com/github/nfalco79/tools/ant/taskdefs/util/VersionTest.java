@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Nikolas Falco
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.nfalco79.tools.ant.taskdefs.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class VersionTest {
+
+	@Test
+	public void parse_all_formats() throws Exception {
+		assertEquals(new Version(1, 0, 0, null), Version.parseVersion("1"));
+		assertEquals(new Version(1, 2, 0, null), Version.parseVersion("1.2"));
+		assertEquals(new Version(1, 2, 3, null), Version.parseVersion(" 1.2.3 "));
+		Version version = Version.parseVersion("1.2.3.v20170101-RC_1");
+		assertEquals(1, version.getMajor());
+		assertEquals(2, version.getMinor());
+		assertEquals(3, version.getMicro());
+		assertEquals("v20170101-RC_1", version.getQualifier());
+		assertSame(Version.EMPTY, Version.parseVersion(null));
+		assertSame(Version.EMPTY, Version.parseVersion(" "));
+	}
+
+	@Test
+	public void parsed_versions_are_cached() throws Exception {
+		assertSame(Version.parseVersion("4.5.6.cached"), Version.parseVersion(new String("4.5.6.cached")));
+	}
+
+	@Test
+	public void canonical_format() throws Exception {
+		assertEquals("1.0.0", Version.parseVersion("1").toString());
+		assertEquals("1.2.0", Version.parseVersion("1.2").toString());
+		assertEquals("1.2.3.qualifier", Version.parseVersion("1.2.3.qualifier").toString());
+	}
+
+	@Test
+	public void comparison_is_numeric_then_by_qualifier() throws Exception {
+		assertTrue(Version.parseVersion("1.10.0").compareTo(Version.parseVersion("1.9.0")) > 0);
+		assertTrue(Version.parseVersion("2.0").compareTo(Version.parseVersion("1.99.99")) > 0);
+		assertTrue(Version.parseVersion("1.0.1").compareTo(Version.parseVersion("1.0.0.zzz")) > 0);
+		assertTrue(Version.parseVersion("1.0.0.b").compareTo(Version.parseVersion("1.0.0.a")) > 0);
+		assertTrue(Version.parseVersion("1.0.0.a").compareTo(Version.parseVersion("1.0.0")) > 0);
+		assertEquals(0, Version.parseVersion("1.0").compareTo(Version.parseVersion("1.0.0")));
+		assertEquals(Version.parseVersion("1.0").hashCode(), Version.parseVersion("1.0.0").hashCode());
+	}
+
+	@Test
+	public void invalid_versions() throws Exception {
+		String[] invalids = { "a", "1.a", "-1", "1..0", "1.0.0.", "1.", ".1", "1.0.0.a.b", "1.0.0.a+b", "1.0.0.a b", "1234567890" };
+		for (String invalid : invalids) {
+			try {
+				Version.parseVersion(invalid);
+				fail("version " + invalid + " is not valid");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(invalid));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalid_qualifier() throws Exception {
+		new Version(1, 0, 0, "a.b");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negative_number() throws Exception {
+		new Version(1, -1, 0, null);
+	}
+}